@@ -0,0 +1,259 @@
+package topicmodels;
+
+import util.Corpus;
+import util.Document;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A trained model of one of the systems behind a common interface, so that the
+ * benchmarks can be parameterized by the system. Models are trained for a single
+ * iteration on a single thread, which leaves every document with topic assignments
+ * and the training sampler in a state in which it can keep sampling.
+ */
+public abstract class BenchmarkModel {
+
+    public static final String[] SYSTEMS = {"LDA", "LLDA", "TDTM", "ATM", "ProtoLDA"};
+
+    // the hyper-parameters, with the defaults of Main
+    static final double ALPHA = 0.01;
+    static final double BETA = 0.01;
+    static final double GAMMA = 0.01;
+
+    /**
+     * Train a model of the given system on a corpus.
+     *
+     * @param system the system (LDA, LLDA, TDTM, ATM, ProtoLDA);
+     * @param corpus the corpus to train on;
+     * @param synthetic the parameters the corpus was generated with;
+     * @param numTopics the number of topics of LDA, ATM and ProtoLDA;
+     * @return the trained model;
+     */
+    public static BenchmarkModel train (String system, Corpus corpus, SyntheticCorpus synthetic, int numTopics) {
+        BenchmarkModel model;
+        if (system.equals("LDA")) {
+            model = new LDAModel(new LDA(numTopics, ALPHA, BETA, corpus));
+        } else if (system.equals("LLDA")) {
+            model = new LLDAModel(new LLDA(ALPHA, BETA, corpus));
+        } else if (system.equals("TDTM")) {
+            model = new TDTMModel(new TDTM(ALPHA, BETA, GAMMA, corpus, synthetic.seed));
+        } else if (system.equals("ATM")) {
+            model = new ATMModel(new ATM(numTopics, ALPHA, BETA, GAMMA, corpus));
+        } else if (system.equals("ProtoLDA")) {
+            model = new ProtoLDAModel(new ProtoLDA(numTopics, ALPHA, BETA, GAMMA, corpus, synthetic.protoTopics(10, 10)));
+        } else {
+            throw new IllegalArgumentException("Unknown system: " + system);
+        }
+        model.train(corpus);
+        return model;
+    }
+
+    protected abstract void train (Corpus corpus);
+
+    /**
+     * Sample new assignments for all tokens of a document with the training sampler.
+     *
+     * @param document the document;
+     */
+    public abstract void sampleForOneDocument (Document document);
+
+    /**
+     * Sample an assignment for a single token, without updating any counts.
+     *
+     * @param word the word of the token;
+     * @param document the document of the token;
+     * @param documentCounts the counts of the document, from documentCounts;
+     * @return the sampled assignment;
+     */
+    public abstract long sample (int word, Document document, int[] documentCounts);
+
+    /**
+     * @param document the document;
+     * @return the counts sample needs for the document: its topic counts, or its
+     *         type counts for TDTM and ATM;
+     */
+    public abstract int[] documentCounts (Document document);
+
+    public abstract void writeTopicDistributions (File file, Corpus corpus) throws IOException;
+
+    /**
+     * Write the model in the given format, if the system can be saved.
+     *
+     * @param file the file to write to;
+     * @param format the encoding of the count matrices (dense, sparse);
+     * @throws IOException
+     */
+    public void write (File file, String format) throws IOException {
+        throw new UnsupportedOperationException("This system can not be saved.");
+    }
+
+    /**
+     * Read a model of the same system.
+     *
+     * @param file the file to read;
+     * @return the model that was read;
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public Object read (File file) throws IOException, ClassNotFoundException {
+        throw new UnsupportedOperationException("This system can not be saved.");
+    }
+
+    static class LDAModel extends BenchmarkModel {
+
+        private final LDA lda;
+
+        LDAModel (LDA lda) { this.lda = lda; }
+
+        protected void train (Corpus corpus) { lda.train(1, corpus); }
+
+        public void sampleForOneDocument (Document document) {
+            lda.learnSampler.sampleForOneDocument(document);
+        }
+
+        public long sample (int word, Document document, int[] documentCounts) {
+            return lda.learnSampler.sample(word, documentCounts);
+        }
+
+        public int[] documentCounts (Document document) {
+            return topicCounts(document, lda.numTopics);
+        }
+
+        public void writeTopicDistributions (File file, Corpus corpus) throws IOException {
+            lda.writeTopicDistributions(file, corpus, 0.0);
+        }
+
+        public void write (File file, String format) throws IOException { lda.write(file, format); }
+
+        public Object read (File file) throws IOException, ClassNotFoundException { return LDA.read(file); }
+    }
+
+    static class LLDAModel extends BenchmarkModel {
+
+        private final LLDA llda;
+
+        LLDAModel (LLDA llda) { this.llda = llda; }
+
+        protected void train (Corpus corpus) { llda.train(1, corpus); }
+
+        public void sampleForOneDocument (Document document) {
+            llda.learnSampler.sampleForOneDocument(document);
+        }
+
+        public long sample (int word, Document document, int[] documentCounts) {
+            return llda.learnSampler.sample(word, document.getLabels(), documentCounts);
+        }
+
+        public int[] documentCounts (Document document) {
+            return topicCounts(document, llda.numTopics);
+        }
+
+        public void writeTopicDistributions (File file, Corpus corpus) throws IOException {
+            llda.writeTopicDistributions(file, corpus, 0.0);
+        }
+
+        public void write (File file, String format) throws IOException { llda.write(file, format); }
+
+        public Object read (File file) throws IOException, ClassNotFoundException { return LLDA.read(file); }
+    }
+
+    static class TDTMModel extends BenchmarkModel {
+
+        private final TDTM tdtm;
+
+        TDTMModel (TDTM tdtm) { this.tdtm = tdtm; }
+
+        protected void train (Corpus corpus) { tdtm.train(1, corpus); }
+
+        public void sampleForOneDocument (Document document) {
+            tdtm.learnSampler.sampleForOneDocument(document);
+        }
+
+        public long sample (int word, Document document, int[] documentCounts) {
+            return tdtm.learnSampler.sample(word, document.getLabels(), document.getTypes(), documentCounts);
+        }
+
+        public int[] documentCounts (Document document) {
+            return typeCounts(document, tdtm.numTypes);
+        }
+
+        public void writeTopicDistributions (File file, Corpus corpus) throws IOException {
+            tdtm.writeTopicDistributions(file, corpus, 0.0);
+        }
+
+        public void write (File file, String format) throws IOException { tdtm.write(file, format); }
+
+        public Object read (File file) throws IOException, ClassNotFoundException { return TDTM.read(file); }
+    }
+
+    static class ATMModel extends BenchmarkModel {
+
+        private final ATM atm;
+
+        ATMModel (ATM atm) { this.atm = atm; }
+
+        protected void train (Corpus corpus) { atm.train(1, corpus); }
+
+        public void sampleForOneDocument (Document document) {
+            atm.learnSampler.sampleForOneDocument(document);
+        }
+
+        public long sample (int word, Document document, int[] documentCounts) {
+            return atm.learnSampler.sample(word, document.getTypes(), documentCounts);
+        }
+
+        public int[] documentCounts (Document document) {
+            return typeCounts(document, atm.numTypes);
+        }
+
+        public void writeTopicDistributions (File file, Corpus corpus) throws IOException {
+            atm.writeTopicDistributions(file, corpus, 0.0);
+        }
+
+        public void write (File file, String format) throws IOException { atm.write(file, format); }
+
+        public Object read (File file) throws IOException, ClassNotFoundException { return ATM.read(file); }
+    }
+
+    static class ProtoLDAModel extends BenchmarkModel {
+
+        private final ProtoLDA lda;
+
+        ProtoLDAModel (ProtoLDA lda) { this.lda = lda; }
+
+        protected void train (Corpus corpus) { lda.train(1, corpus); }
+
+        public void sampleForOneDocument (Document document) {
+            lda.learnSampler.sampleForOneDocument(document);
+        }
+
+        public long sample (int word, Document document, int[] documentCounts) {
+            return lda.learnSampler.sample(word, documentCounts);
+        }
+
+        public int[] documentCounts (Document document) {
+            return topicCounts(document, lda.totalTopics);
+        }
+
+        public void writeTopicDistributions (File file, Corpus corpus) throws IOException {
+            lda.writeTopicDistributions(file, corpus, 0.0);
+        }
+    }
+
+    private static int[] topicCounts (Document document, int numTopics) {
+        int[] counts = new int[numTopics];
+        for (int position = 0; position < document.size(); position++) {
+            counts[document.getTopic(position)]++;
+        }
+        return counts;
+    }
+
+    private static int[] typeCounts (Document document, int numTypes) {
+        int[] counts = new int[numTypes];
+        for (int position = 0; position < document.size(); position++) {
+            counts[document.getType(position)]++;
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,61 @@
+package topicmodels;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.Corpus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a corpus file, with the line reader of Corpus.readFile(String) and with
+ * the chunked reader of Corpus.readFile(String, int), by size of the vocabulary.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CorpusBenchmark {
+
+    // the number of threads of the chunked reader
+    private static final int NUM_THREADS = 4;
+
+    @Param({"1000", "10000", "100000"})
+    public int numWords;
+
+    private File file;
+
+    @Setup
+    public void setUp () throws IOException {
+        SyntheticCorpus synthetic = new SyntheticCorpus();
+        synthetic.numWords = numWords;
+        synthetic.numDocuments = 20000;
+        file = synthetic.write();
+    }
+
+    @Benchmark
+    public Corpus readFile () throws IOException {
+        Corpus corpus = new Corpus();
+        corpus.readFile(file.getPath());
+        return corpus;
+    }
+
+    @Benchmark
+    public Corpus readFileChunked () throws IOException {
+        Corpus corpus = new Corpus();
+        corpus.readFile(file.getPath(), NUM_THREADS);
+        return corpus;
+    }
+}
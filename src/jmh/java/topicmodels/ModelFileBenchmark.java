@@ -0,0 +1,67 @@
+package topicmodels;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.ModelFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing and reading a trained model in both encodings of the count matrices, for
+ * the systems that can be saved, by number of topics.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ModelFileBenchmark {
+
+    @Param({"LDA", "LLDA", "TDTM", "ATM"})
+    public String system;
+
+    @Param({"10", "100", "1000"})
+    public int numTopics;
+
+    @Param({ModelFile.DENSE, ModelFile.SPARSE})
+    public String format;
+
+    private BenchmarkModel model;
+    private File written;
+    private File scratch;
+
+    @Setup
+    public void setUp () throws IOException {
+        SyntheticCorpus synthetic = new SyntheticCorpus();
+        synthetic.numWords = 10000;
+        synthetic.numLabels = numTopics;
+        model = BenchmarkModel.train(system, synthetic.read(), synthetic, numTopics);
+        written = File.createTempFile("model", ".lda");
+        written.deleteOnExit();
+        model.write(written, format);
+        scratch = File.createTempFile("model", ".lda");
+        scratch.deleteOnExit();
+    }
+
+    @Benchmark
+    public void write () throws IOException {
+        model.write(scratch, format);
+    }
+
+    @Benchmark
+    public Object read () throws IOException, ClassNotFoundException {
+        return model.read(written);
+    }
+}
@@ -0,0 +1,56 @@
+package topicmodels;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.Corpus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing the topic distributions of the documents of a trained model, by system
+ * and number of topics.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OutputBenchmark {
+
+    @Param({"LDA", "LLDA", "TDTM", "ATM", "ProtoLDA"})
+    public String system;
+
+    @Param({"10", "100", "1000"})
+    public int numTopics;
+
+    private Corpus corpus;
+    private BenchmarkModel model;
+    private File file;
+
+    @Setup
+    public void setUp () throws IOException {
+        SyntheticCorpus synthetic = new SyntheticCorpus();
+        synthetic.numLabels = numTopics;
+        corpus = synthetic.read();
+        model = BenchmarkModel.train(system, corpus, synthetic, numTopics);
+        file = File.createTempFile("topics", ".txt");
+        file.deleteOnExit();
+    }
+
+    @Benchmark
+    public void writeTopicDistributions () throws IOException {
+        model.writeTopicDistributions(file, corpus);
+    }
+}
@@ -0,0 +1,91 @@
+package topicmodels;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import util.Corpus;
+import util.Document;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The training samplers of all systems, for a whole document (sampleForOneDocument)
+ * and for a single token (sample), by number of topics and size of the vocabulary.
+ * For LLDA and TDTM the number of topics is the number of labels in the corpus.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SamplerBenchmark {
+
+    // the number of tokens the sample benchmark cycles through
+    private static final int NUM_SAMPLE_TOKENS = 1 << 12;
+
+    @Param({"LDA", "LLDA", "TDTM", "ATM", "ProtoLDA"})
+    public String system;
+
+    @Param({"10", "100", "1000"})
+    public int numTopics;
+
+    @Param({"1000", "10000"})
+    public int numWords;
+
+    private Corpus corpus;
+    private BenchmarkModel model;
+    private int nextDocument = 0;
+
+    // the words, documents and document counts of the tokens for sample
+    private int[] words;
+    private Document[] documents;
+    private int[][] documentCounts;
+    private int nextToken = 0;
+
+    @Setup
+    public void setUp () throws IOException {
+        SyntheticCorpus synthetic = new SyntheticCorpus();
+        synthetic.numWords = numWords;
+        synthetic.numLabels = numTopics;
+        corpus = synthetic.read();
+        model = BenchmarkModel.train(system, corpus, synthetic, numTopics);
+
+        words = new int[NUM_SAMPLE_TOKENS];
+        documents = new Document[NUM_SAMPLE_TOKENS];
+        documentCounts = new int[NUM_SAMPLE_TOKENS][];
+        int token = 0;
+        for (int index = 0; index < corpus.size() && token < NUM_SAMPLE_TOKENS; index++) {
+            Document document = corpus.get(index);
+            int[] counts = model.documentCounts(document);
+            for (int position = 0; position < document.size() && token < NUM_SAMPLE_TOKENS; position++) {
+                words[token] = document.getToken(position);
+                documents[token] = document;
+                documentCounts[token] = counts;
+                token++;
+            }
+        }
+    }
+
+    @Benchmark
+    public void sampleForOneDocument () {
+        model.sampleForOneDocument(corpus.get(nextDocument));
+        nextDocument = (nextDocument + 1) % corpus.size();
+    }
+
+    @Benchmark
+    public long sample () {
+        int token = nextToken;
+        nextToken = (nextToken + 1) % NUM_SAMPLE_TOKENS;
+        return model.sample(words[token], documents[token], documentCounts[token]);
+    }
+}
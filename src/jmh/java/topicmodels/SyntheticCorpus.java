@@ -0,0 +1,130 @@
+package topicmodels;
+
+import util.Corpus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * Writes a reproducible random corpus file in the format of Corpus.readFile. Words
+ * follow a Zipf distribution over the vocabulary, every document has one to three
+ * distinct labels and one or two distinct types (authors), all drawn from a fixed
+ * seed, so the same parameters always give the same file.
+ */
+public class SyntheticCorpus {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public int numDocuments = 2000;
+    public int documentLength = 100;
+    public int numWords = 1000;
+    public int numLabels = 10;
+    public int numTypes = 10;
+    public long seed = 20;
+
+    /**
+     * Write the corpus to a temporary file, which is deleted when the JVM exits.
+     *
+     * @return the file holding the corpus;
+     * @throws IOException
+     */
+    public File write () throws IOException {
+        File file = File.createTempFile("synthetic-corpus", ".tsv");
+        file.deleteOnExit();
+        Random random = new Random(seed);
+        double[] cumulative = new double[numWords];
+        double sum = 0.0;
+        for (int word = 0; word < numWords; word++) {
+            sum += 1.0 / (word + 1);
+            cumulative[word] = sum;
+        }
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+        try {
+            StringBuilder line = new StringBuilder();
+            for (int document = 0; document < numDocuments; document++) {
+                line.setLength(0);
+                line.append("doc").append(document).append('\t');
+                appendItems(line, "author", 1 + random.nextInt(2), numTypes, random);
+                line.append('\t');
+                appendItems(line, "label", 1 + random.nextInt(3), numLabels, random);
+                line.append('\t');
+                for (int position = 0; position < documentLength; position++) {
+                    if (position > 0) {
+                        line.append(' ');
+                    }
+                    line.append('w').append(zipf(cumulative, random));
+                }
+                out.print(line.append('\n'));
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Write the corpus and read it back.
+     *
+     * @return the corpus;
+     * @throws IOException
+     */
+    public Corpus read () throws IOException {
+        Corpus corpus = new Corpus();
+        corpus.readFile(write().getPath());
+        return corpus;
+    }
+
+    /**
+     * Proto-topics for ProtoLDA over the most frequent words of the corpus.
+     *
+     * @param numProtoTopics the number of proto-topics;
+     * @param numProtoWords the number of words per proto-topic;
+     * @return the proto-topics, as read by ProtoTopics.read;
+     */
+    public HashMap<String, ArrayList<String>> protoTopics (int numProtoTopics, int numProtoWords) {
+        HashMap<String, ArrayList<String>> protoTopics = new HashMap<String, ArrayList<String>>();
+        for (int topic = 0; topic < numProtoTopics; topic++) {
+            ArrayList<String> words = new ArrayList<String>();
+            for (int word = topic; word < numWords && words.size() < numProtoWords; word += numProtoTopics) {
+                words.add("w" + word);
+            }
+            protoTopics.put("proto" + topic, words);
+        }
+        return protoTopics;
+    }
+
+    private static void appendItems (StringBuilder line, String prefix, int count, int range, Random random) {
+        HashSet<Integer> items = new HashSet<Integer>();
+        while (items.size() < Math.min(count, range)) {
+            int item = random.nextInt(range);
+            if (items.add(item)) {
+                if (items.size() > 1) {
+                    line.append(',');
+                }
+                line.append(prefix).append(item);
+            }
+        }
+    }
+
+    private static int zipf (double[] cumulative, Random random) {
+        double sample = random.nextDouble() * cumulative[cumulative.length - 1];
+        int low = 0, high = cumulative.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulative[middle] < sample) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
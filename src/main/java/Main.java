@@ -1,10 +1,16 @@
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 import topicmodels.*;
+import util.Convergence;
 import util.Corpus;
+import util.CorpusCache;
+import util.LeftToRight;
+import util.ModelFile;
 import util.ProtoTopics;
+import util.SweepSchedule;
 
 import java.io.File;
 import java.io.IOException;
@@ -74,6 +80,141 @@ public class Main {
                 .setDefault(0.01)
                 .help("Gamma parameter: smoothing over the topic distribution.");
 
+        parser.addArgument("--sampler")
+                .dest("sampler")
+                .type(String.class)
+                .choices(LDA.GIBBS, LDA.SPARSE, LDA.ALIAS, TDTM.BLOCKED)
+                .setDefault(LDA.GIBBS)
+                .help("The sampler to use for training LDA (gibbs, sparse, alias) and ATM (gibbs, sparse) or for TDTM inference (gibbs, blocked).");
+
+        parser.addArgument("--mhSteps")
+                .dest("mhSteps")
+                .type(Integer.class)
+                .setDefault(2)
+                .help("The number of Metropolis-Hastings steps per token of the alias sampler.");
+
+        parser.addArgument("--aliasRebuild")
+                .dest("aliasRebuild")
+                .type(Integer.class)
+                .setDefault(0)
+                .help("The number of draws after which an alias table is rebuilt (0 means the number of topics).");
+
+        parser.addArgument("--threads")
+                .dest("threads")
+                .type(Integer.class)
+                .setDefault(1)
+                .help("The number of threads to use for sampling. The results of LLDA and TDTM inference "
+                        + "do not depend on it.");
+
+        parser.addArgument("--labelComponents")
+                .dest("labelComponents")
+                .action(Arguments.storeTrue())
+                .help("Train LLDA on several threads by sampling the connected components of the label co-occurrence "
+                        + "graph concurrently, which is exact, instead of merging the counts of the threads after each iteration.");
+
+        parser.addArgument("--saveCorpus")
+                .dest("saveCorpus")
+                .type(String.class)
+                .help("Save the corpus read from --file in binary format to this file, which can be given to --file in later runs.");
+
+        parser.addArgument("--modelFormat")
+                .dest("modelFormat")
+                .type(String.class)
+                .choices(ModelFile.DENSE, ModelFile.SPARSE)
+                .setDefault(ModelFile.DENSE)
+                .help("The encoding of the count matrices in the saved model (dense, sparse).");
+
+        parser.addArgument("--checkpoint")
+                .dest("checkpoint")
+                .type(Integer.class)
+                .setDefault(0)
+                .help("Write a checkpoint to the output directory every this many iterations (0 means never; LDA, LLDA and TDTM).");
+
+        parser.addArgument("--resume")
+                .dest("resume")
+                .action(Arguments.storeTrue())
+                .help("Continue training from the checkpoint in the output directory (LDA, LLDA and TDTM). "
+                        + "A single-threaded run with a fixed number of iterations resumes exactly where it stopped; "
+                        + "with --threads, --labelComponents or --convergence the resumed run continues from the "
+                        + "checkpointed assignments, but does not repeat the samples of an uninterrupted run.");
+
+        parser.addArgument("--likelihood")
+                .dest("likelihood")
+                .type(Integer.class)
+                .setDefault(0)
+                .help("Compute the log-likelihood every N training iterations (0 means never).");
+
+        parser.addArgument("--convergence")
+                .dest("convergence")
+                .type(Double.class)
+                .setDefault(0.0)
+                .help("Stop training when the relative improvement of the log-likelihood stays below this threshold (0 means never).");
+
+        parser.addArgument("--patience")
+                .dest("patience")
+                .type(Integer.class)
+                .setDefault(3)
+                .help("The number of log-likelihood computations in a row below the convergence threshold after which to stop.");
+
+        parser.addArgument("--tolerance")
+                .dest("tolerance")
+                .type(Double.class)
+                .setDefault(0.0)
+                .help("Sample each document during inference until the fraction of changed assignments or the L1 change "
+                        + "of its topic proportions drops below this tolerance (0 means a fixed number of iterations).");
+
+        parser.addArgument("--minSweeps")
+                .dest("minSweeps")
+                .type(Integer.class)
+                .setDefault(2)
+                .help("The minimum number of sweeps per document with --tolerance.");
+
+        parser.addArgument("--maxSweeps")
+                .dest("maxSweeps")
+                .type(Integer.class)
+                .help("The maximum number of sweeps per document with --tolerance (defaults to the number of iterations).");
+
+        parser.addArgument("--candidates")
+                .dest("candidates")
+                .type(Integer.class)
+                .setDefault(0)
+                .help("Sample each unseen document over a shortlist of labels during LLDA inference: "
+                        + "the N most probable labels of each of its words (0 means all labels).");
+
+        parser.addArgument("--documentCandidates")
+                .dest("documentCandidates")
+                .action(Arguments.storeTrue())
+                .help("Add the labels given with each document in --file to its shortlist during LLDA inference.");
+
+        parser.addArgument("--exact")
+                .dest("exact")
+                .action(Arguments.storeTrue())
+                .help("Keep LLDA inference with a shortlist exact: labels outside the shortlist can still be drawn "
+                        + "and then join it.");
+
+        parser.addArgument("--evaluate")
+                .dest("evaluate")
+                .action(Arguments.storeTrue())
+                .help("Instead of inference, estimate the held-out perplexity of the documents in --file "
+                        + "with the left-to-right method and write it to evaluation.txt (LDA and LLDA).");
+
+        parser.addArgument("--particles")
+                .dest("particles")
+                .type(Integer.class)
+                .setDefault(10)
+                .help("The number of particles per document for --evaluate.");
+
+        parser.addArgument("--export")
+                .dest("export")
+                .action(Arguments.storeTrue())
+                .help("Also export the document-topic (theta) and topic-word (phi) distributions as float32 matrices.");
+
+        parser.addArgument("--topWords")
+                .dest("topWords")
+                .type(Integer.class)
+                .setDefault(0)
+                .help("The number of words per topic to write in the topic distributions (0 means all).");
+
         parser.addArgument("--seed")
                 .dest("seed")
                 .type(Long.class)
@@ -92,6 +233,31 @@ public class Main {
         String system = ns.getString("system");
         String output = ns.getString("output");
         String protoTopicFile = ns.getString("prototopics");
+        String sampler = ns.getString("sampler");
+        int numThreads = ns.getInt("threads");
+        String saveCorpus = ns.getString("saveCorpus");
+        String modelFormat = ns.getString("modelFormat");
+        int checkpointInterval = ns.getInt("checkpoint");
+        boolean resume = ns.getBoolean("resume");
+        int topWords = ns.getInt("topWords");
+        boolean export = ns.getBoolean("export");
+        boolean evaluate = ns.getBoolean("evaluate");
+        int numParticles = ns.getInt("particles");
+        int likelihoodInterval = ns.getInt("likelihood");
+        double tolerance = ns.getDouble("tolerance");
+        Integer maxSweeps = ns.getInt("maxSweeps");
+        SweepSchedule sweepSchedule = tolerance > 0
+                ? new SweepSchedule(ns.getInt("minSweeps"), maxSweeps != null ? maxSweeps : iterations, tolerance)
+                : null;
+        Convergence convergence = likelihoodInterval > 0
+                ? new Convergence(likelihoodInterval, ns.getDouble("convergence"), ns.getInt("patience"))
+                : null;
+
+        checkSampler(sampler, system, model == null);
+
+        if (resume && !(system.equals("LDA") || system.equals("LLDA") || system.equals("TDTM"))) {
+            throw new IllegalArgumentException("Resuming from a checkpoint is only available for LDA, LLDA and TDTM.");
+        }
 
         File outputDirectory;
         if (output == null && model != null) {
@@ -102,61 +268,148 @@ public class Main {
             throw new IOException("No output directory given");
         }
         if (!outputDirectory.exists()) { outputDirectory.mkdir(); }
+        File checkpointFile = new File(outputDirectory + File.separator + "checkpoint.lda");
+        File evaluationFile = new File(outputDirectory + File.separator + "evaluation.txt");
+        File exportDirectory = new File(outputDirectory + File.separator + (model == null ? "final-matrices" : "inference-matrices"));
+        if (export && !exportDirectory.exists()) { exportDirectory.mkdir(); }
 
         if (model == null) {
             Corpus corpus = new Corpus();
-            corpus.readFile(file);
+            corpus.readFile(file, numThreads);
+            if (saveCorpus != null) { CorpusCache.write(corpus, new File(saveCorpus)); }
             if (system.equals("LLDA")) {
-                LLDA llda = new LLDA(alpha, beta, corpus);
+                LLDA llda = resume ? LLDA.readCheckpoint(checkpointFile, corpus) : new LLDA(alpha, beta, corpus);
+                llda.numThreads = numThreads;
+                llda.labelComponents = ns.getBoolean("labelComponents");
+                llda.convergence = convergence;
+                llda.checkpointInterval = checkpointInterval;
+                llda.checkpointFile = checkpointFile;
                 llda.train(iterations, corpus);
                 //llda.writeTopicDistributions(new File(outputDirectory + File.separator + "final-topics.txt"), corpus, 0.0);
-                llda.write(new File(outputDirectory + File.separator + "model.lda"));
+                if (export) { llda.exportMatrices(exportDirectory, corpus, 0.0); }
+                llda.write(new File(outputDirectory + File.separator + "model.lda"), modelFormat);
             } else if (system.equals("TDTM")) {
-                TDTM tdtm = new TDTM(alpha, beta, gamma, corpus, seed);
+                TDTM tdtm = resume ? TDTM.readCheckpoint(checkpointFile, corpus) : new TDTM(alpha, beta, gamma, corpus, seed);
+                tdtm.numThreads = numThreads;
+                tdtm.convergence = convergence;
+                tdtm.checkpointInterval = checkpointInterval;
+                tdtm.checkpointFile = checkpointFile;
                 tdtm.train(iterations, corpus);
                 tdtm.writeTopicDistributions(new File(outputDirectory + File.separator + "final-topics.txt"), corpus, 0.0);
-                tdtm.write(new File(outputDirectory + File.separator + "model.lda"));
+                if (export) { tdtm.exportMatrices(exportDirectory, corpus, 0.0); }
+                tdtm.write(new File(outputDirectory + File.separator + "model.lda"), modelFormat);
             } else if (system.equals("ProtoLDA")) {
                 HashMap<String, ArrayList<String>> protoTopics = ProtoTopics.read(protoTopicFile);
                 ProtoLDA lda = new ProtoLDA(numTopics, alpha, beta, gamma, corpus, protoTopics);
+                lda.numThreads = numThreads;
+                lda.convergence = convergence;
                 lda.train(iterations, corpus);
                 lda.writeTopicDistributions(new File(outputDirectory + File.separator + "final-topics.txt"), corpus, 0.0);
-                lda.printTopicDistribution(new File(outputDirectory + File.separator + "topic-distribution.txt"));
-                lda.printPhi(new File(outputDirectory + File.separator + "phi.txt"));
+                if (export) { lda.exportMatrices(exportDirectory, corpus, 0.0); }
+                lda.printTopicDistribution(new File(outputDirectory + File.separator + "topic-distribution.txt"), topWords);
+                lda.printPhi(new File(outputDirectory + File.separator + "phi.txt"), topWords);
             } else if (system.equals("ATM")) {
                 ATM atm = new ATM(numTopics, alpha, beta, gamma, corpus);
+                atm.sampler = sampler;
+                atm.numThreads = numThreads;
+                atm.convergence = convergence;
                 atm.train(iterations, corpus);
+                if (export) { atm.exportMatrices(exportDirectory, corpus, 0.0); }
                 atm.printAuthorTopicDistribution(new File(outputDirectory + File.separator + "author-topic-distribution.txt"));
-                atm.printTopicDistribution(new File(outputDirectory + File.separator + "topic-distribution.txt"));
+                atm.printTopicDistribution(new File(outputDirectory + File.separator + "topic-distribution.txt"), topWords);
             } else {
-                LDA lda = new LDA (numTopics, alpha, beta, corpus);
+                LDA lda = resume ? LDA.readCheckpoint(checkpointFile, corpus) : new LDA (numTopics, alpha, beta, corpus);
+                lda.sampler = sampler;
+                lda.mhSteps = ns.getInt("mhSteps");
+                lda.aliasRebuildInterval = ns.getInt("aliasRebuild");
+                lda.numThreads = numThreads;
+                lda.convergence = convergence;
+                lda.checkpointInterval = checkpointInterval;
+                lda.checkpointFile = checkpointFile;
                 lda.train(iterations, corpus);
                 lda.writeTopicDistributions(new File(outputDirectory + File.separator + "final-topics.txt"), corpus, 0.0);
-                lda.write(new File(outputDirectory + File.separator + "model.lda"));
-                lda.printTopicDistribution(new File(outputDirectory + File.separator + "topic-distribution.txt"));
+                if (export) { lda.exportMatrices(exportDirectory, corpus, 0.0); }
+                lda.write(new File(outputDirectory + File.separator + "model.lda"), modelFormat);
+                lda.printTopicDistribution(new File(outputDirectory + File.separator + "topic-distribution.txt"), topWords);
             }
 
+        } else if (evaluate) {
+            LeftToRight.Result result;
+            if (system.equals("LLDA")) {
+                LLDA llda = LLDA.read(new File(model));
+                llda.numThreads = numThreads;
+                result = llda.evaluate(file, alpha, numParticles);
+            } else if (system.equals("LDA")) {
+                LDA lda = LDA.read(new File(model));
+                lda.numThreads = numThreads;
+                result = lda.evaluate(file, numParticles);
+            } else {
+                throw new IllegalArgumentException("Held-out evaluation is only available for LDA and LLDA.");
+            }
+            LeftToRight.logger.info("Held-out evaluation: " + result + ".");
+            result.write(evaluationFile);
         } else {
             if (system.equals("LLDA")) {
                 LLDA llda = LLDA.read(new File(model));
+                llda.numThreads = numThreads;
+                llda.sweepSchedule = sweepSchedule;
+                llda.candidateLabels = ns.getInt("candidates");
+                llda.documentCandidates = ns.getBoolean("documentCandidates");
+                llda.exactFallback = ns.getBoolean("exact");
                 Corpus corpus = new Corpus(llda.wordIndex, llda.topicIndex);
-                corpus.readFile(file);
+                corpus.readFile(file, numThreads);
+                if (saveCorpus != null) { CorpusCache.write(corpus, new File(saveCorpus)); }
                 llda.infer(iterations, corpus, alpha);
                 llda.writeTopicDistributions(new File(outputDirectory + File.separator + "inference-topics.txt"), corpus, alpha);
+                if (export) { llda.exportMatrices(exportDirectory, corpus, alpha); }
 
             } else if (system.equals("TDTM")) {
                 TDTM tdtm = TDTM.read(new File(model));
+                tdtm.sampler = sampler;
+                tdtm.numThreads = numThreads;
+                tdtm.sweepSchedule = sweepSchedule;
                 Corpus corpus = new Corpus(tdtm.wordIndex, tdtm.topicIndex, tdtm.typeIndex);
-                corpus.readFile(file);
+                corpus.readFile(file, numThreads);
+                if (saveCorpus != null) { CorpusCache.write(corpus, new File(saveCorpus)); }
                 tdtm.infer(iterations, corpus, alpha, gamma);
                 tdtm.writeTopicDistributions(new File(outputDirectory + File.separator + "inference-topics.txt"), corpus, gamma);
+                if (export) { tdtm.exportMatrices(exportDirectory, corpus, gamma); }
             } else {
                 LDA lda = LDA.read(new File(model));
                 Corpus corpus = new Corpus(lda.wordIndex, lda.topicIndex);
-                corpus.readFile(file);
+                corpus.readFile(file, numThreads);
+                if (saveCorpus != null) { CorpusCache.write(corpus, new File(saveCorpus)); }
                 lda.infer(iterations, corpus);
                 lda.writeTopicDistributions(new File(outputDirectory + File.separator + "inference-topics.txt"), corpus, alpha);
+                if (export) { lda.exportMatrices(exportDirectory, corpus, alpha); }
             }
         }
     }
+
+    /**
+     * Check that a sampler is available for a system. Gibbs sampling always is; the
+     * other samplers only where they are implemented, as listed in the --sampler help.
+     *
+     * @param sampler the sampler given with --sampler;
+     * @param system the system given with --system;
+     * @param training true for training, false for inference and evaluation;
+     */
+    private static void checkSampler (String sampler, String system, boolean training) {
+        boolean available;
+        if (sampler.equals(LDA.GIBBS)) {
+            available = true;
+        } else if (system.equals("LDA") && training) {
+            available = sampler.equals(LDA.SPARSE) || sampler.equals(LDA.ALIAS);
+        } else if (system.equals("ATM") && training) {
+            available = sampler.equals(ATM.SPARSE);
+        } else if (system.equals("TDTM") && !training) {
+            available = sampler.equals(TDTM.BLOCKED);
+        } else {
+            available = false;
+        }
+        if (!available) {
+            throw new IllegalArgumentException("The " + sampler + " sampler is not available for " + system
+                    + (training ? " training." : " inference."));
+        }
+    }
 }
@@ -5,6 +5,8 @@ import util.*;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 
 
@@ -12,6 +14,10 @@ public class ATM {
 
     public static Logger logger = Logger.getLogger(TDTM.class.getName());
 
+    // available samplers for training
+    public static final String GIBBS = "gibbs";
+    public static final String SPARSE = "sparse";
+
     public ATM.LearnSampler learnSampler;
 
     public int numTopics;
@@ -39,6 +45,16 @@ public class ATM {
     protected Randoms random;
     protected Boolean trained = false;
 
+    // which sampler to use for training
+    public String sampler = GIBBS;
+    // the number of threads to use for training
+    public int numThreads = 1;
+
+    // report the log-likelihood during training and decide when to stop early (null means never)
+    public Convergence convergence;
+    // cached lgamma tables for the log-likelihood
+    private transient LogLikelihood.Table alphaTable, betaTable, gammaTable;
+
     /**
      * Initialize an instance of ATM.
      *
@@ -74,6 +90,42 @@ public class ATM {
         random = new Randoms(20);
     }
 
+    /**
+     * Create an empty model, of which the fields are set by read.
+     */
+    private ATM () {}
+
+    /**
+     * A worker copy for trainParallel, with empty author and topic counts and the
+     * sampler of the model.
+     *
+     * @param model the model to copy;
+     * @param seed the random seed of the worker;
+     */
+    private ATM (ATM model, long seed) {
+        numTopics = model.numTopics;
+        numTypes = model.numTypes;
+        numWords = model.numWords;
+
+        beta = model.beta;
+        gamma = model.gamma;
+        alpha = model.alpha;
+        betaSum = model.betaSum;
+        gammaSum = model.gammaSum;
+
+        topicCounts = new int[numTopics];
+        wordTopicCounts = new int[numWords][numTopics];
+        typeCounts = new int[numTypes];
+        typeTopicCounts = new int[numTypes][numTopics];
+
+        topicIndex = model.topicIndex;
+        typeIndex = model.typeIndex;
+        wordIndex = model.wordIndex;
+
+        sampler = model.sampler;
+        random = new Randoms(seed);
+    }
+
     /**
      * Given a corpus, where each document has been assigned to a category and a number
      * of labels or topics have been assigned to the document, learn the type-topic
@@ -83,21 +135,115 @@ public class ATM {
      * @param iterations how many iterations to run the sampler;
      * @param corpus the corpus to run the sampler on;
      */
-    public void train (int iterations, Corpus corpus) {
-        learnSampler = new ATM.LearnSampler();
+    public void train (int iterations, final Corpus corpus) {
+        corpus.allocateTopicAssignments();
+        corpus.allocateTypeAssignments();
+        learnSampler = newLearnSampler();
         for (Document document : corpus) {
             learnSampler.addDocument(document);
         }
         logger.info("Sampler initialized. " + numTopics + " topics and " + corpus.size() + " documents.");
-        for (int iteration = 1; iteration <= iterations; iteration++) {
-            logger.info("Sampling iteration " + iteration + " started.");
-            for (Document document: corpus) {
-                learnSampler.sampleForOneDocument(document);
+        if (numThreads > 1) {
+            trainParallel(iterations, corpus);
+        } else {
+            Convergence.Likelihood likelihood = new Convergence.Likelihood() {
+                public double compute () {
+                    return logLikelihood(corpus, null);
+                }
+            };
+            for (int iteration = 1; iteration <= iterations; iteration++) {
+                logger.info("Sampling iteration " + iteration + " started.");
+                for (Document document: corpus) {
+                    learnSampler.sampleForOneDocument(document);
+                }
+                if (convergence != null && convergence.isDueAndConverged(iteration, likelihood, corpus.getNumTokens())) {
+                    break;
+                }
             }
         }
         trained = true;
     }
 
+    /**
+     * Run the sampler on numThreads threads with Parallel.train, each thread
+     * sampling against the counts of its own worker copy of the model.
+     *
+     * @param iterations the number of iterations to run the sampler;
+     * @param corpus the corpus to run the sampler on;
+     */
+    private void trainParallel (int iterations, final Corpus corpus) {
+        List<Parallel.Worker> workers = new ArrayList<Parallel.Worker>(numThreads);
+        for (int thread = 0; thread < numThreads; thread++) {
+            final ATM worker = new ATM(this, random.nextLong());
+            final LearnSampler workerSampler = worker.newLearnSampler();
+            workers.add(new Parallel.Worker() {
+                public int[][][] matrices () { return new int[][][] {worker.wordTopicCounts, worker.typeTopicCounts}; }
+                public int[][] vectors () { return new int[][] {worker.topicCounts, worker.typeCounts}; }
+                public void sample (List<Document> documents) {
+                    workerSampler.resync();
+                    for (Document document : documents) {
+                        workerSampler.sampleForOneDocument(document);
+                    }
+                }
+            });
+        }
+        Parallel.train(corpus, 1, iterations, new int[][][] {wordTopicCounts, typeTopicCounts}, new int[][] {topicCounts, typeCounts},
+                workers, new Parallel.IterationListener() {
+                    public boolean finished (int iteration, final ExecutorService pool) {
+                        return convergence != null && convergence.isDueAndConverged(iteration, new Convergence.Likelihood() {
+                            public double compute () {
+                                return logLikelihood(corpus, pool);
+                            }
+                        }, corpus.getNumTokens());
+                    }
+                });
+    }
+
+    /**
+     * Create the training sampler selected by the sampler field.
+     *
+     * @return a new training sampler;
+     */
+    protected LearnSampler newLearnSampler () {
+        if (SPARSE.equals(sampler)) {
+            return new SparseLearnSampler();
+        }
+        return new LearnSampler();
+    }
+
+    /**
+     * Compute the joint log-likelihood log p(w, z, y) of the words of a corpus and their
+     * topic and author (type) assignments, with the author distributions of the
+     * documents, the topic distributions of the authors and the word distributions
+     * integrated out.
+     *
+     * @param corpus the corpus the model is trained on;
+     * @return the log-likelihood;
+     */
+    public double logLikelihood (Corpus corpus) {
+        return logLikelihood(corpus, null);
+    }
+
+    private double logLikelihood (Corpus corpus, ExecutorService pool) {
+        alphaTable = LogLikelihood.table(alphaTable, alpha);
+        betaTable = LogLikelihood.table(betaTable, beta);
+        gammaTable = LogLikelihood.table(gammaTable, gamma);
+        int[] docTypeCounts = new int[numTypes];
+        double value = 0.0;
+        for (Document document : corpus) {
+            for (int position = 0; position < document.size(); position++) {
+                docTypeCounts[document.getType(position)]++;
+            }
+            alphaTable.ensureSize(document.size());
+            value += LogLikelihood.symmetric(docTypeCounts, document.getTypes(), document.size(), alpha, alphaTable);
+        }
+        for (int type = 0; type < numTypes; type++) {
+            gammaTable.ensureSize(typeCounts[type]);
+            value += LogLikelihood.symmetric(typeTopicCounts[type], typeCounts[type], numTopics, gamma, gammaTable);
+        }
+        return value + LogLikelihood.topicWords(wordTopicCounts, topicCounts, 0, numTopics, beta, betaTable, pool, numThreads);
+    }
+
     /**
      * Write the either learned or inferred topic distributions to a file.
      *
@@ -112,16 +258,9 @@ public class ATM {
         for (Document document : corpus) {
             printer.print(document.getSource() + "\t");
             IDSorter[] sortedTopics = new IDSorter[numTopics];
-            int[] topicCounts = new int[numTopics];
-            int docLen = 0;
-            for (int position = 0; position < document.size(); position++) {
-                int word = document.getToken(position);
-                if (word >= numWords) { continue; }
-                docLen++;
-                topicCounts[document.getTopic(position)]++;
-            }
+            double[] proportions = topicProportions(document, smooth);
             for (int topic = 0; topic < numTopics; topic++) {
-                sortedTopics[topic] = new IDSorter(topic, (smooth + topicCounts[topic]) / (docLen));
+                sortedTopics[topic] = new IDSorter(topic, proportions[topic]);
             }
             Arrays.sort(sortedTopics);
             for (int index = 0; index < numTopics; index++) {
@@ -134,64 +273,177 @@ public class ATM {
         printer.close();
     }
 
+    /**
+     * Compute the topic proportions of a document from its topic assignments,
+     * ignoring words that are unknown to the model.
+     *
+     * @param document the document;
+     * @param smooth parameter to use for smoothing the topic distribution;
+     * @return the proportion of each topic;
+     */
+    private double[] topicProportions (Document document, double smooth) {
+        int[] topicCounts = new int[numTopics];
+        int docLen = 0;
+        for (int position = 0; position < document.size(); position++) {
+            int word = document.getToken(position);
+            if (word >= numWords) { continue; }
+            docLen++;
+            topicCounts[document.getTopic(position)]++;
+        }
+        double[] proportions = new double[numTopics];
+        for (int topic = 0; topic < numTopics; topic++) {
+            proportions[topic] = (smooth + topicCounts[topic]) / (docLen);
+        }
+        return proportions;
+    }
+
+    /**
+     * Export the topic distributions of the documents (theta) and the word
+     * distributions of the topics (phi) as float32 matrices, see MatrixExport.
+     * Theta holds the proportions written by writeTopicDistributions.
+     *
+     * @param directory the directory to write the matrices to;
+     * @param corpus the corpus containing the topic assignments;
+     * @param smooth parameter to use for smoothing the topic distributions;
+     * @throws IOException
+     */
+    public void exportMatrices (File directory, Corpus corpus, double smooth) throws IOException {
+        MatrixExport.writeSources(new File(directory, "documents.tsv"), corpus);
+        MatrixExport.writeLabels(new File(directory, "topics.tsv"), topicIndex, numTopics);
+        MatrixExport.writeLabels(new File(directory, "words.tsv"), wordIndex, numWords);
+        MatrixExport.Writer theta = new MatrixExport.Writer(directory, "theta", corpus.size(), numTopics, "documents.tsv", "topics.tsv");
+        for (Document document : corpus) {
+            theta.writeRow(topicProportions(document, smooth));
+        }
+        theta.close();
+        MatrixExport.Writer phi = new MatrixExport.Writer(directory, "phi", numTopics, numWords, "topics.tsv", "words.tsv");
+        double[] row = new double[numWords];
+        for (int topic = 0; topic < numTopics; topic++) {
+            for (int word = 0; word < numWords; word++) {
+                row[word] = (beta + wordTopicCounts[word][topic]) / (betaSum + topicCounts[topic]);
+            }
+            phi.writeRow(row);
+        }
+        phi.close();
+    }
+
     public void printAuthorTopicDistribution (File file) throws IOException {
-        PrintStream output = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)));
-        output.print(authorTopicDistributions());
-        output.close();
+        Writer output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file)), 1 << 16);
+        try {
+            writeAuthorTopicDistributions(output);
+        } finally {
+            output.close();
+        }
     }
 
     public String authorTopicDistributions () {
-        StringBuilder output = new StringBuilder();
-        output.append("#person\ttopic:proportion...\n");
-        IDSorter[] sortedTopics = new IDSorter[numTopics];
-        for (int author = 0; author < numTypes; author++) {
+        StringWriter output = new StringWriter();
+        try {
+            writeAuthorTopicDistributions(output);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return output.toString();
+    }
+
+    /**
+     * Write the topics of each author, ordered by their proportion for the author.
+     *
+     * @param output the writer to write to;
+     * @throws IOException
+     */
+    private void writeAuthorTopicDistributions (Writer output) throws IOException {
+        output.write("#person\ttopic:proportion...\n");
+        List<AuthorFormatter> formatters = new ArrayList<AuthorFormatter>();
+        for (int thread = 0; thread < Math.max(numThreads, 1); thread++) {
+            formatters.add(new AuthorFormatter());
+        }
+        Parallel.writeBlocks(output, numTypes, formatters);
+    }
+
+    /**
+     * Formats the topics of an author, ordered by their proportion for the author.
+     */
+    private class AuthorFormatter implements Parallel.BlockFormatter {
+
+        private final IDSorter[] sortedTopics = new IDSorter[numTopics];
+
+        public void format (int author, TextBuffer output) {
             for (int topic = 0; topic < numTopics; topic++) {
                 sortedTopics[topic] = new IDSorter(topic, ((double) typeTopicCounts[author][topic]) / typeCounts[author]);
             }
             Arrays.sort(sortedTopics);
-            output.append(typeIndex.getItem(author)).append("\t");
+            output.append(typeIndex.getItem(author)).append('\t');
             for (int topic = 0; topic < numTopics; topic++) {
-                output.append(topicIndex.getItem(sortedTopics[topic].getIndex())).append(":").append(sortedTopics[topic].getValue()).append(" ");
+                output.append(topicIndex.getItem(sortedTopics[topic].getIndex()))
+                        .append(':')
+                        .append(sortedTopics[topic].getValue())
+                        .append(' ');
             }
-            output.append("\n");
+            output.append('\n');
         }
-        return output.toString();
     }
 
     public void printTopicDistribution (File file) throws IOException {
-        PrintStream output = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)));
-        output.print(getTopicDistribution());
-        output.close();
+        printTopicDistribution(file, 0);
     }
 
-    private String getTopicDistribution () {
-        StringBuilder output = new StringBuilder();
-        IDSorter[] sortedWords = new IDSorter[numWords];
-        for (int topic = 0; topic < numTopics; topic++) {
+    /**
+     * Write the words of each topic, ordered by their count in the topic.
+     *
+     * @param file the file to write to;
+     * @param topWords the number of words to write per topic, 0 means all;
+     * @throws IOException
+     */
+    public void printTopicDistribution (File file, int topWords) throws IOException {
+        Writer output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file)), 1 << 16);
+        try {
+            List<TopicFormatter> formatters = new ArrayList<TopicFormatter>();
+            for (int thread = 0; thread < Math.max(numThreads, 1); thread++) {
+                formatters.add(new TopicFormatter(topWords));
+            }
+            Parallel.writeBlocks(output, numTopics, formatters);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Formats the words of a topic, ordered by their count in the topic.
+     */
+    private class TopicFormatter implements Parallel.BlockFormatter {
+
+        private final TopK sortedWords;
+
+        TopicFormatter (int topWords) {
+            sortedWords = new TopK(topWords > 0 ? Math.min(topWords, numWords) : numWords);
+        }
+
+        public void format (int topic, TextBuffer output) {
+            sortedWords.clear();
             for (int word = 0; word < numWords; word++) {
-                sortedWords[word] = new IDSorter(word, (double) wordTopicCounts[word][topic]);
+                sortedWords.add(word, wordTopicCounts[word][topic]);
             }
-            Arrays.sort(sortedWords);
+            sortedWords.sort();
             output.append(topicIndex.getItem(topic))
-                    .append(" ")
-                    .append("count: ")
+                    .append(" count: ")
                     .append(topicCounts[topic])
-                    .append(" ");
-            for (int word = 0; word < numWords; word++) {
-                if (sortedWords[word].getValue() > 0) {
-                    output.append(wordIndex.getItem(sortedWords[word].getIndex()))
-                            .append(":")
-                            .append(sortedWords[word].getValue())
-                            .append(" ");
+                    .append(' ');
+            for (int rank = 0; rank < sortedWords.size(); rank++) {
+                if (sortedWords.value(rank) > 0) {
+                    output.append(wordIndex.getItem(sortedWords.index(rank)))
+                            .append(':')
+                            .append(sortedWords.value(rank))
+                            .append(' ');
                 }
             }
-            output.append("\n");
+            output.append('\n');
         }
-        return output.toString();
     }
 
     /**
-     * Read an existing serialized model from disk.
+     * Read an existing model from disk. Both the binary model format of
+     * ModelFile and models written with object serialization are accepted.
      *
      * @param file the filename of the model to read
      * @return the model
@@ -199,6 +451,16 @@ public class ATM {
      * @throws ClassNotFoundException
      */
     public static ATM read (File file) throws IOException, ClassNotFoundException {
+        if (ModelFile.isModelFile(file)) {
+            ATM atm = new ATM();
+            ModelFile.Reader in = new ModelFile.Reader(file, "ATM");
+            try {
+                atm.read(in);
+            } finally {
+                in.close();
+            }
+            return atm;
+        }
         ATM atm;
         ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(file));
         atm = (ATM) inputStream.readObject();
@@ -206,6 +468,26 @@ public class ATM {
         return atm;
     }
 
+    private void read (ModelFile.Reader in) throws IOException, ClassNotFoundException {
+        typeCounts = in.readInts("typeCounts");
+        typeTopicCounts = in.readMatrix("typeTopicCounts");
+        topicCounts = in.readInts("topicCounts");
+        wordTopicCounts = in.readMatrix("wordTopicCounts");
+        alpha = in.readDouble("alpha");
+        beta = in.readDouble("beta");
+        betaSum = in.readDouble("betaSum");
+        gamma = in.readDouble("gamma");
+        gammaSum = in.readDouble("gammaSum");
+        numTopics = in.readInt("numTopics");
+        numTypes = in.readInt("numTypes");
+        numWords = in.readInt("numWords");
+        random = (Randoms) in.readObject("random");
+        topicIndex = in.readIndex("topicIndex");
+        typeIndex = in.readIndex("typeIndex");
+        wordIndex = in.readIndex("wordIndex");
+        trained = in.readBoolean("trained");
+    }
+
     private void readObject (ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
         typeCounts = (int[]) inputStream.readObject();
         typeTopicCounts = (int[][]) inputStream.readObject();
@@ -232,15 +514,49 @@ public class ATM {
     }
 
     /**
-     * Write a model serialized to disk.
+     * Write a model to disk in the binary model format of ModelFile.
      *
      * @param file the name of the file to write the model to;
      * @throws IOException
      */
     public void write (File file) throws IOException {
-        ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(file));
-        outputStream.writeObject(this);
-        outputStream.close();
+        write(file, ModelFile.DENSE);
+    }
+
+    /**
+     * Write a model to disk in the binary model format of ModelFile.
+     *
+     * @param file the name of the file to write the model to;
+     * @param format the encoding of the count matrices, ModelFile.DENSE or ModelFile.SPARSE;
+     * @throws IOException
+     */
+    public void write (File file, String format) throws IOException {
+        ModelFile.Writer out = new ModelFile.Writer(file, "ATM", format);
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void write (ModelFile.Writer out) throws IOException {
+        out.writeInts("typeCounts", typeCounts);
+        out.writeMatrix("typeTopicCounts", typeTopicCounts);
+        out.writeInts("topicCounts", topicCounts);
+        out.writeMatrix("wordTopicCounts", wordTopicCounts);
+        out.writeDouble("alpha", alpha);
+        out.writeDouble("beta", beta);
+        out.writeDouble("betaSum", betaSum);
+        out.writeDouble("gamma", gamma);
+        out.writeDouble("gammaSum", gammaSum);
+        out.writeInt("numTopics", numTopics);
+        out.writeInt("numTypes", numTypes);
+        out.writeInt("numWords", numWords);
+        out.writeObject("random", random);
+        out.writeIndex("topicIndex", topicIndex);
+        out.writeIndex("typeIndex", typeIndex);
+        out.writeIndex("wordIndex", wordIndex);
+        out.writeBoolean("trained", trained);
     }
 
     private void writeObject (ObjectOutputStream outputStream) throws IOException {
@@ -268,11 +584,35 @@ public class ATM {
         outputStream.writeBoolean(trained);
     }
 
+    /**
+     * Pack a sampled topic and type into a single primitive, so that samplers
+     * do not need to allocate an array for every token.
+     *
+     * @param topic the sampled topic;
+     * @param type the sampled type;
+     * @return the packed assignment;
+     */
+    static long assignment (int topic, int type) {
+        return ((long) topic << 32) | (type & 0xFFFFFFFFL);
+    }
+
+    static int topicOf (long assignment) {
+        return (int) (assignment >>> 32);
+    }
+
+    static int typeOf (long assignment) {
+        return (int) assignment;
+    }
+
     /**
      * Base sampler, sub-classed by LearnSampler and InferSampler.
      */
     public class Sampler {
 
+        // scratch space reused between tokens and documents
+        protected final int[] currentTypeCounts = new int[numTypes];
+        protected double[] scores = new double[0];
+
         /**
          * Sample the topics and types for all tokens of a document.
          *
@@ -280,8 +620,8 @@ public class ATM {
          * @param types the set of possible types to sample from fro this document;
          */
         public void sampleForOneDocument (Document document, ArrayList<Integer> types) {
-            int[] assignment;
-            int[] docTypeCounts = new int[numTypes];
+            long assignment;
+            int[] docTypeCounts = currentTypeCounts;
             for (int position = 0; position < document.size(); position++) {
                 if (document.getToken(position) >= numWords) {
                     continue;
@@ -298,12 +638,30 @@ public class ATM {
                 decrement(topic, word, type);
                 docTypeCounts[type]--;
                 assignment = sample(word, types, docTypeCounts);
-                topic = assignment[1]; type = assignment[2];
+                topic = topicOf(assignment); type = typeOf(assignment);
                 increment(topic, word, type);
                 docTypeCounts[type]++;
                 document.setTopic(position, topic);
                 document.setType(position, type);
             }
+            for (int position = 0; position < document.size(); position++) {
+                if (document.getToken(position) < numWords) {
+                    docTypeCounts[document.getType(position)] = 0;
+                }
+            }
+        }
+
+        /**
+         * Return a scores array of at least the given size.
+         *
+         * @param size the number of scores needed;
+         * @return the scratch scores array;
+         */
+        protected double[] scores (int size) {
+            if (scores.length < size) {
+                scores = new double[size];
+            }
+            return scores;
         }
 
         /**
@@ -325,10 +683,10 @@ public class ATM {
          * @param word the word for which we sample a topic and a type;
          * @param types the set of types to sample a type from;
          * @param docTypeCounts for each type, how often does it occur in the document under investigation?
-         * @return an array consisting of a word, a topic and a type;
+         * @return the sampled topic and type, packed with assignment(topic, type);
          */
-        public int[] sample (int word, ArrayList<Integer> types, int[] docTypeCounts) {
-            double[][] topicTermScores = new double[numTopics][types.size()];
+        public long sample (int word, ArrayList<Integer> types, int[] docTypeCounts) {
+            double[] topicTermScores = scores(numTopics * types.size());
             double sum = 0.0;
             for (int i = 0; i < types.size(); i++) {
                 int type = types.get(i);
@@ -339,23 +697,19 @@ public class ATM {
                             (beta + wordTopicCounts[word][topic]) / (betaSum + topicCounts[topic]) * // P(w|t)
                             (gamma + typeTopicCounts[type][topic]) / P_T;  // P(t|T)
                     sum += score;
-                    topicTermScores[topic][i] = score;
+                    topicTermScores[i * numTopics + topic] = score;
                 }
             }
             double sample = random.nextUniform() * sum;
-            int topic = -1; int type = 0;
+            int index = -1;
             while (sample > 0.0) {
-                topic++;
-                if (topic == numTopics) {
-                    type++;
-                    topic = 0;
-                }
-                sample -= topicTermScores[topic][type];
+                index++;
+                sample -= topicTermScores[index];
             }
-            if (topic == -1) {
+            if (index == -1) {
                 throw new IllegalStateException("No topic sampled.");
             }
-            return new int[]{word, topic, types.get(type)};
+            return assignment(index % numTopics, types.get(index / numTopics));
         }
     }
 
@@ -364,6 +718,12 @@ public class ATM {
      */
     public class LearnSampler extends ATM.Sampler {
 
+        /**
+         * Bring the state the sampler derives from the counts up to date after the
+         * counts were replaced as a whole, as Parallel.train does every iteration.
+         */
+        public void resync () {}
+
         /**
          * Add a document to the sampler, which means that we randomly assign to each token
          * a type (sampled from the set of types associated with this document) and
@@ -411,4 +771,213 @@ public class ATM {
             wordTopicCounts[word][topic]++;
         }
     }
+
+    /**
+     * Sampler for training a model that splits the score of an (author, topic) pair
+     * into three buckets, following SparseLDA (Yao, Mimno and McCallum, 2009). With the author
+     * factor A_a = (alpha + n_da) / (gammaSum + n_a), the score
+     * A_a * (beta + n_wt) * (gamma + n_at) / (betaSum + n_t) is the sum of
+     *
+     *   A_a * beta * gamma / (betaSum + n_t)           (smoothing only)
+     *   A_a * gamma * n_wt / (betaSum + n_t)           (topic-word)
+     *   A_a * n_at * (beta + n_wt) / (betaSum + n_t)   (author-topic)
+     *
+     * The first two buckets factorize into the sum of the author factors of the
+     * document times a sum over the topics, of which the smoothing sum is cached over
+     * the whole corpus and the topic-word sum only visits the topics to which the word
+     * is assigned. The author-topic bucket only visits the topics to which each author
+     * of the document is assigned. The cost per token therefore depends on the number
+     * of non-zero author-topic and word-topic counts rather than on the number of topics
+     * times the number of authors.
+     */
+    public class SparseLearnSampler extends ATM.LearnSampler {
+
+        private final NonZeroColumns wordTopics;
+        private final NonZeroColumns typeTopics;
+
+        // 1 / (betaSum + n_t) for each topic
+        private final double[] inverseDenominators;
+        private double smoothingMass;
+        private int documentsSinceReset;
+
+        // the author-topic mass of each author of the current token
+        private double[] typeMasses = new double[0];
+
+        public SparseLearnSampler () {
+            wordTopics = new NonZeroColumns(wordTopicCounts, numTopics);
+            typeTopics = new NonZeroColumns(typeTopicCounts, numTopics);
+            inverseDenominators = new double[numTopics];
+            resetSmoothing();
+        }
+
+        /**
+         * Recompute the smoothing sum and the inverse denominators from scratch, which
+         * removes rounding errors accumulated by the incremental updates.
+         */
+        private void resetSmoothing () {
+            smoothingMass = 0.0;
+            for (int topic = 0; topic < numTopics; topic++) {
+                inverseDenominators[topic] = 1.0 / (betaSum + topicCounts[topic]);
+                smoothingMass += beta * gamma * inverseDenominators[topic];
+            }
+            documentsSinceReset = 0;
+        }
+
+        public void resync () {
+            wordTopics.rebuild(wordTopicCounts);
+            typeTopics.rebuild(typeTopicCounts);
+            resetSmoothing();
+        }
+
+        /**
+         * Sample the topics and types for all tokens of a document.
+         *
+         * @param document an instance of Document for which we sample the topics and types;
+         * @param types the set of possible types to sample from fro this document;
+         */
+        public void sampleForOneDocument (Document document, ArrayList<Integer> types) {
+            if (++documentsSinceReset > numTopics) {
+                resetSmoothing();
+            }
+            super.sampleForOneDocument(document, types);
+        }
+
+        /**
+         * Sample a type and a topic for the current word from the three buckets.
+         *
+         * @param word the word for which we sample a topic and a type;
+         * @param types the set of types to sample a type from;
+         * @param docTypeCounts for each type, how often does it occur in the document under investigation?
+         * @return the sampled topic and type, packed with assignment(topic, type);
+         */
+        public long sample (int word, ArrayList<Integer> types, int[] docTypeCounts) {
+            int numDocTypes = types.size();
+            double[] typeFactors = scores(numDocTypes);
+            if (typeMasses.length < numDocTypes) {
+                typeMasses = new double[numDocTypes];
+            }
+            int[] wordCounts = wordTopicCounts[word];
+            double typeFactorSum = 0.0;
+            double typeTopicMass = 0.0;
+            for (int i = 0; i < numDocTypes; i++) {
+                int type = types.get(i);
+                double typeFactor = (alpha + docTypeCounts[type]) / (gammaSum + typeCounts[type]);
+                int[] topics = typeTopics.columns(type);
+                int[] counts = typeTopicCounts[type];
+                double mass = 0.0;
+                for (int k = 0; k < typeTopics.size(type); k++) {
+                    int topic = topics[k];
+                    mass += counts[topic] * (beta + wordCounts[topic]) * inverseDenominators[topic];
+                }
+                typeFactors[i] = typeFactor;
+                typeMasses[i] = typeFactor * mass;
+                typeFactorSum += typeFactor;
+                typeTopicMass += typeMasses[i];
+            }
+            int[] topics = wordTopics.columns(word);
+            int size = wordTopics.size(word);
+            double topicWordSum = 0.0;
+            for (int k = 0; k < size; k++) {
+                topicWordSum += gamma * wordCounts[topics[k]] * inverseDenominators[topics[k]];
+            }
+
+            double sample = random.nextUniform() * (typeTopicMass + typeFactorSum * (topicWordSum + smoothingMass));
+            if (sample < typeTopicMass) {
+                int i = draw(typeMasses, numDocTypes, sample);
+                int type = types.get(i);
+                int[] typeTopicList = typeTopics.columns(type);
+                int[] counts = typeTopicCounts[type];
+                sample = random.nextUniform() * typeMasses[i] / typeFactors[i];
+                for (int k = 0; k < typeTopics.size(type); k++) {
+                    int topic = typeTopicList[k];
+                    sample -= counts[topic] * (beta + wordCounts[topic]) * inverseDenominators[topic];
+                    if (sample <= 0.0) {
+                        return assignment(topic, type);
+                    }
+                }
+                return assignment(typeTopicList[typeTopics.size(type) - 1], type);
+            }
+            // both other buckets draw the author from the author factors alone
+            sample -= typeTopicMass;
+            int type = types.get(draw(typeFactors, numDocTypes, sample / (topicWordSum + smoothingMass)));
+            sample = random.nextUniform() * (topicWordSum + smoothingMass);
+            if (sample < topicWordSum) {
+                for (int k = 0; k < size; k++) {
+                    sample -= gamma * wordCounts[topics[k]] * inverseDenominators[topics[k]];
+                    if (sample <= 0.0) {
+                        return assignment(topics[k], type);
+                    }
+                }
+                return assignment(topics[size - 1], type);
+            }
+            sample -= topicWordSum;
+            for (int topic = 0; topic < numTopics; topic++) {
+                sample -= beta * gamma * inverseDenominators[topic];
+                if (sample <= 0.0) {
+                    return assignment(topic, type);
+                }
+            }
+            return assignment(numTopics - 1, type);
+        }
+
+        /**
+         * Draw an index from the first size unnormalized scores, given a sample
+         * between zero and their sum. Indexes with a zero score are never drawn.
+         */
+        private int draw (double[] scores, int size, double sample) {
+            int last = 0;
+            for (int i = 0; i < size; i++) {
+                if (scores[i] > 0.0) {
+                    last = i;
+                    sample -= scores[i];
+                    if (sample <= 0.0) {
+                        return i;
+                    }
+                }
+            }
+            return last;
+        }
+
+        /**
+         * Update the count matrices, the non-zero topics of the word and the author
+         * and the cached smoothing sum by decrementing the appropriate counts.
+         *
+         * @param topic the topic to update;
+         * @param word the word to update;
+         * @param type the type to update;
+         */
+        public void decrement (int topic, int word, int type) {
+            smoothingMass -= beta * gamma * inverseDenominators[topic];
+            super.decrement(topic, word, type);
+            if (wordTopicCounts[word][topic] == 0) {
+                wordTopics.remove(word, topic);
+            }
+            if (typeTopicCounts[type][topic] == 0) {
+                typeTopics.remove(type, topic);
+            }
+            inverseDenominators[topic] = 1.0 / (betaSum + topicCounts[topic]);
+            smoothingMass += beta * gamma * inverseDenominators[topic];
+        }
+
+        /**
+         * Update the count matrices, the non-zero topics of the word and the author
+         * and the cached smoothing sum by incrementing the appropriate counts.
+         *
+         * @param topic the topic to update;
+         * @param word the word to update;
+         * @param type the type to update;
+         */
+        public void increment (int topic, int word, int type) {
+            smoothingMass -= beta * gamma * inverseDenominators[topic];
+            super.increment(topic, word, type);
+            if (wordTopicCounts[word][topic] == 1) {
+                wordTopics.add(word, topic);
+            }
+            if (typeTopicCounts[type][topic] == 1) {
+                typeTopics.add(type, topic);
+            }
+            inverseDenominators[topic] = 1.0 / (betaSum + topicCounts[topic]);
+            smoothingMass += beta * gamma * inverseDenominators[topic];
+        }
+    }
 }
@@ -3,7 +3,10 @@ package topicmodels;
 import util.*;
 
 import java.io.*;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 
 /**
@@ -14,9 +17,15 @@ import java.util.logging.Logger;
  * be, but it serves its educational purposes well.
  */
 public class LDA implements Serializable {
+    private static final long serialVersionUID = -7400794085016657879L;
 
     public static Logger logger = Logger.getLogger(LDA.class.getName());
 
+    // available samplers for training
+    public static final String GIBBS = "gibbs";
+    public static final String SPARSE = "sparse";
+    public static final String ALIAS = "alias";
+
     LDA.LearnSampler learnSampler;
     LDA.InferSampler inferSampler;
 
@@ -39,6 +48,27 @@ public class LDA implements Serializable {
     protected Randoms random;
     protected Boolean trained = false;
 
+    // which sampler to use for training
+    public String sampler = GIBBS;
+    // settings of the alias sampler: the number of Metropolis-Hastings steps per token
+    // and the number of draws after which an alias table is rebuilt (0 means numTopics)
+    public int mhSteps = 2;
+    public int aliasRebuildInterval = 0;
+    // the number of threads to use for training
+    public int numThreads = 1;
+
+    // write a checkpoint to checkpointFile every checkpointInterval iterations (0 means never)
+    public int checkpointInterval = 0;
+    public File checkpointFile;
+
+    // report the log-likelihood during training and decide when to stop early (null means never)
+    public Convergence convergence;
+    // cached lgamma tables for the log-likelihood
+    private transient LogLikelihood.Table alphaTable, betaTable;
+
+    // the number of iterations done before the checkpoint this model was resumed from
+    private int completedIterations = 0;
+
     /**
      * Initialize an instance of LDA.
      *
@@ -66,6 +96,37 @@ public class LDA implements Serializable {
         random = new Randoms(20);
     }
 
+    /**
+     * Create an empty model, of which the fields are set by read.
+     */
+    private LDA () {}
+
+    /**
+     * A worker copy for trainParallel and Checkpoint: the settings, sampler and
+     * indexes of the model, with its own topic counts and random number generator.
+     *
+     * @param model the model to copy;
+     * @param seed the random seed of the worker;
+     */
+    private LDA (LDA model, long seed) {
+        numTopics = model.numTopics;
+        numWords = model.numWords;
+        alpha = model.alpha;
+        beta = model.beta;
+        betaSum = model.betaSum;
+        sampler = model.sampler;
+        mhSteps = model.mhSteps;
+        aliasRebuildInterval = model.aliasRebuildInterval;
+
+        topicCounts = new int[numTopics];
+        wordTopicCounts = new int[numWords][numTopics];
+
+        topicIndex = model.topicIndex;
+        wordIndex = model.wordIndex;
+
+        random = new Randoms(seed);
+    }
+
     /**
      * Given a corpus, learn the topic distribution per document and the
      * word distribution per topic.
@@ -73,21 +134,189 @@ public class LDA implements Serializable {
      * @param iterations the number of iterations to run the sampler;
      * @param corpus the corpus to run the sampler on;
      */
-    public void train (int iterations, Corpus corpus) {
-        learnSampler = new LearnSampler();
-        for (Document document : corpus) {
-            learnSampler.addDocument(document);
-        }
-        logger.info("Sampler initialized. " + numTopics + " topics and " + corpus.size() + " documents.");
-        for (int iteration = 1; iteration <= iterations; iteration++) {
-            logger.info("Sampling iteration " + iteration + " started.");
+    public void train (int iterations, final Corpus corpus) {
+        corpus.allocateTopicAssignments();
+        learnSampler = newLearnSampler();
+        int first = completedIterations + 1;
+        completedIterations = 0;
+        if (first == 1) {
             for (Document document : corpus) {
-                learnSampler.sampleForOneDocument(document);
+                learnSampler.addDocument(document);
+            }
+            logger.info("Sampler initialized. " + numTopics + " topics and " + corpus.size() + " documents.");
+        } else {
+            logger.info("Sampler resumed at iteration " + first + ". " + numTopics + " topics and " + corpus.size() + " documents.");
+        }
+        Checkpointer<Checkpoint> checkpointer = newCheckpointer(corpus);
+        try {
+            if (numThreads > 1) {
+                trainParallel(first, iterations, corpus, checkpointer);
+            } else {
+                Convergence.Likelihood likelihood = new Convergence.Likelihood() {
+                    public double compute () {
+                        return logLikelihood(corpus, null);
+                    }
+                };
+                for (int iteration = first; iteration <= iterations; iteration++) {
+                    logger.info("Sampling iteration " + iteration + " started.");
+                    for (Document document : corpus) {
+                        learnSampler.sampleForOneDocument(document);
+                    }
+                    if (checkpoint(checkpointer, corpus, iteration)) {
+                        // a run resumed from this checkpoint starts with a new sampler, because the
+                        // state of the sparse and alias samplers is not saved, so start a new one here
+                        // too, which keeps a resumed serial run identical to an uninterrupted one
+                        learnSampler = newLearnSampler();
+                    }
+                    if (convergence != null && convergence.isDueAndConverged(iteration, likelihood, corpus.getNumTokens())) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            if (checkpointer != null) {
+                checkpointer.close();
             }
         }
         trained = true;
     }
 
+    /**
+     * Run the sampler on numThreads threads with Parallel.train, each thread
+     * sampling against the counts of its own worker copy of the model.
+     *
+     * @param first the first iteration to run;
+     * @param iterations the number of iterations to run the sampler;
+     * @param corpus the corpus to run the sampler on;
+     * @param checkpointer the checkpointer to use, or null;
+     */
+    private void trainParallel (int first, int iterations, final Corpus corpus, final Checkpointer<Checkpoint> checkpointer) {
+        List<Parallel.Worker> workers = new ArrayList<Parallel.Worker>(numThreads);
+        for (int thread = 0; thread < numThreads; thread++) {
+            final LDA worker = new LDA(this, random.nextLong());
+            final LearnSampler workerSampler = worker.newLearnSampler();
+            workers.add(new Parallel.Worker() {
+                public int[][][] matrices () { return new int[][][] {worker.wordTopicCounts}; }
+                public int[][] vectors () { return new int[][] {worker.topicCounts}; }
+                public void sample (List<Document> documents) {
+                    workerSampler.resync();
+                    for (Document document : documents) {
+                        workerSampler.sampleForOneDocument(document);
+                    }
+                }
+            });
+        }
+        Parallel.train(corpus, first, iterations, new int[][][] {wordTopicCounts}, new int[][] {topicCounts},
+                workers, new Parallel.IterationListener() {
+                    public boolean finished (int iteration, final ExecutorService pool) {
+                        checkpoint(checkpointer, corpus, iteration);
+                        return convergence != null && convergence.isDueAndConverged(iteration, new Convergence.Likelihood() {
+                            public double compute () {
+                                return logLikelihood(corpus, pool);
+                            }
+                        }, corpus.getNumTokens());
+                    }
+                });
+    }
+
+    /**
+     * Compute the joint log-likelihood log p(w, z) of the words of a corpus and their
+     * topic assignments, with the topic and word distributions integrated out.
+     *
+     * @param corpus the corpus the model is trained on;
+     * @return the log-likelihood;
+     */
+    public double logLikelihood (Corpus corpus) {
+        return logLikelihood(corpus, null);
+    }
+
+    private double logLikelihood (Corpus corpus, ExecutorService pool) {
+        alphaTable = LogLikelihood.table(alphaTable, alpha);
+        betaTable = LogLikelihood.table(betaTable, beta);
+        int[] docTopicCounts = new int[numTopics];
+        double value = 0.0;
+        for (Document document : corpus) {
+            Arrays.fill(docTopicCounts, 0);
+            for (int position = 0; position < document.size(); position++) {
+                docTopicCounts[document.getTopic(position)]++;
+            }
+            alphaTable.ensureSize(document.size());
+            value += LogLikelihood.symmetric(docTopicCounts, document.size(), numTopics, alpha, alphaTable);
+        }
+        return value + LogLikelihood.topicWords(wordTopicCounts, topicCounts, 0, numTopics, beta, betaTable, pool, numThreads);
+    }
+
+    private Checkpointer<Checkpoint> newCheckpointer (Corpus corpus) {
+        if (checkpointInterval <= 0 || checkpointFile == null) {
+            return null;
+        }
+        return new Checkpointer<Checkpoint>(checkpointFile, "LDA", checkpointInterval,
+                new Checkpoint(corpus), new Checkpoint(corpus));
+    }
+
+    /**
+     * Write a checkpoint if one is due after this iteration.
+     *
+     * @param checkpointer the checkpointer to use, or null;
+     * @param corpus the corpus the model is trained on;
+     * @param iteration the iteration that has just finished;
+     * @return true if a checkpoint was written;
+     */
+    private boolean checkpoint (Checkpointer<Checkpoint> checkpointer, Corpus corpus, int iteration) {
+        if (checkpointer == null || !checkpointer.isDue(iteration)) {
+            return false;
+        }
+        Checkpoint checkpoint = checkpointer.acquire();
+        checkpoint.copy(corpus, iteration);
+        checkpointer.submit(checkpoint);
+        return true;
+    }
+
+    /**
+     * A copy of the counts, assignments and random number generator of a training
+     * run, which is written as a model file extended with the token assignments
+     * and the number of finished iterations.
+     */
+    private class Checkpoint implements Checkpointer.Snapshot {
+
+        private final LDA model = new LDA(LDA.this, 0);
+        private final int[] topicAssignments;
+        private int iteration;
+
+        Checkpoint (Corpus corpus) {
+            topicAssignments = new int[corpus.getNumTokens()];
+        }
+
+        void copy (Corpus corpus, int iteration) {
+            this.iteration = iteration;
+            Parallel.copy(wordTopicCounts, model.wordTopicCounts);
+            System.arraycopy(topicCounts, 0, model.topicCounts, 0, topicCounts.length);
+            model.random = random.copy();
+            corpus.copyTopicAssignments(topicAssignments);
+        }
+
+        public void write (ModelFile.Writer out) throws IOException {
+            model.write(out);
+            out.writeInt("iteration", iteration);
+            out.writeInts("topicAssignments", topicAssignments);
+        }
+    }
+
+    /**
+     * Construct the training sampler selected by the sampler field.
+     *
+     * @return a new training sampler;
+     */
+    protected LearnSampler newLearnSampler () {
+        if (SPARSE.equals(sampler)) {
+            return new SparseLearnSampler();
+        }
+        if (ALIAS.equals(sampler)) {
+            return new AliasLearnSampler();
+        }
+        return new LearnSampler();
+    }
+
     /**
      * Given a corpus of test documents, try to assign to each token
      * a topic based on a previously learned LLDA model.
@@ -96,6 +325,7 @@ public class LDA implements Serializable {
      * @param corpus the corpus to run the sampler on;
      */
     public void infer (int iterations, Corpus corpus) {
+        corpus.allocateTopicAssignments();
         inferSampler = new InferSampler();
         for (Document document : corpus) {
             inferSampler.addDocument(document);
@@ -109,6 +339,21 @@ public class LDA implements Serializable {
         }
     }
 
+    /**
+     * Estimate the per-word perplexity of held-out documents under this model with
+     * the left-to-right particle method. The documents are streamed from the file
+     * and evaluated on numThreads threads.
+     *
+     * @param filename the file holding the held-out documents, in the format of Corpus.readFile;
+     * @param numParticles the number of particles per document;
+     * @return the log-likelihood and perplexity of the documents;
+     * @throws IOException
+     */
+    public LeftToRight.Result evaluate (String filename, int numParticles) throws IOException {
+        LeftToRight evaluator = new LeftToRight(wordTopicCounts, topicCounts, alpha, beta, betaSum, numParticles);
+        return evaluator.evaluate(filename, wordIndex, numThreads, random.nextLong());
+    }
+
     /**
      * Write the either learned or inferred topic distributions to a file.
      *
@@ -123,16 +368,9 @@ public class LDA implements Serializable {
         for (Document document : corpus) {
             printer.print(document.getSource() + "\t");
             IDSorter[] sortedTopics = new IDSorter[numTopics];
-            int[] topicCounts = new int[numTopics];
-            int docLen = 0;
-            for (int position = 0; position < document.size(); position++) {
-                int word = document.getToken(position);
-                if (word >= numWords) { continue; }
-                docLen++;
-                topicCounts[document.getTopic(position)]++;
-            }
+            double[] proportions = topicProportions(document, smooth);
             for (int topic = 0; topic < numTopics; topic++) {
-                sortedTopics[topic] = new IDSorter(topic, (smooth + topicCounts[topic]) / (docLen));
+                sortedTopics[topic] = new IDSorter(topic, proportions[topic]);
             }
             Arrays.sort(sortedTopics);
             for (int index = 0; index < numTopics; index++) {
@@ -145,34 +383,113 @@ public class LDA implements Serializable {
         printer.close();
     }
 
-    public void printTopicDistribution (File file) throws IOException {
-        PrintStream output = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)));
-        output.print(getTopicDistribution());
-        output.close();
+    /**
+     * Compute the topic proportions of a document from its topic assignments,
+     * ignoring words that are unknown to the model.
+     *
+     * @param document the document;
+     * @param smooth parameter to use for smoothing the topic distribution;
+     * @return the proportion of each topic;
+     */
+    private double[] topicProportions (Document document, double smooth) {
+        int[] topicCounts = new int[numTopics];
+        int docLen = 0;
+        for (int position = 0; position < document.size(); position++) {
+            int word = document.getToken(position);
+            if (word >= numWords) { continue; }
+            docLen++;
+            topicCounts[document.getTopic(position)]++;
+        }
+        double[] proportions = new double[numTopics];
+        for (int topic = 0; topic < numTopics; topic++) {
+            proportions[topic] = (smooth + topicCounts[topic]) / (docLen);
+        }
+        return proportions;
     }
 
-    private String getTopicDistribution () {
-        StringBuilder output = new StringBuilder();
-        IDSorter[] sortedWords = new IDSorter[numWords];
+    /**
+     * Export the topic distributions of the documents (theta) and the word
+     * distributions of the topics (phi) as float32 matrices, see MatrixExport.
+     * Theta holds the proportions written by writeTopicDistributions.
+     *
+     * @param directory the directory to write the matrices to;
+     * @param corpus the corpus containing the topic assignments;
+     * @param smooth parameter to use for smoothing the topic distributions;
+     * @throws IOException
+     */
+    public void exportMatrices (File directory, Corpus corpus, double smooth) throws IOException {
+        MatrixExport.writeSources(new File(directory, "documents.tsv"), corpus);
+        MatrixExport.writeLabels(new File(directory, "topics.tsv"), topicIndex, numTopics);
+        MatrixExport.writeLabels(new File(directory, "words.tsv"), wordIndex, numWords);
+        MatrixExport.Writer theta = new MatrixExport.Writer(directory, "theta", corpus.size(), numTopics, "documents.tsv", "topics.tsv");
+        for (Document document : corpus) {
+            theta.writeRow(topicProportions(document, smooth));
+        }
+        theta.close();
+        MatrixExport.Writer phi = new MatrixExport.Writer(directory, "phi", numTopics, numWords, "topics.tsv", "words.tsv");
+        double[] row = new double[numWords];
         for (int topic = 0; topic < numTopics; topic++) {
             for (int word = 0; word < numWords; word++) {
-                sortedWords[word] = new IDSorter(word, (double) wordTopicCounts[word][topic]);
+                row[word] = (beta + wordTopicCounts[word][topic]) / (betaSum + topicCounts[topic]);
+            }
+            phi.writeRow(row);
+        }
+        phi.close();
+    }
+
+    public void printTopicDistribution (File file) throws IOException {
+        printTopicDistribution(file, 0);
+    }
+
+    /**
+     * Write the words of each topic, ordered by their count in the topic.
+     *
+     * @param file the file to write to;
+     * @param topWords the number of words to write per topic, 0 means all;
+     * @throws IOException
+     */
+    public void printTopicDistribution (File file, int topWords) throws IOException {
+        Writer output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file)), 1 << 16);
+        try {
+            List<TopicFormatter> formatters = new ArrayList<TopicFormatter>();
+            for (int thread = 0; thread < Math.max(numThreads, 1); thread++) {
+                formatters.add(new TopicFormatter(topWords));
+            }
+            Parallel.writeBlocks(output, numTopics, formatters);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Formats the words of a topic, ordered by their count in the topic.
+     */
+    private class TopicFormatter implements Parallel.BlockFormatter {
+
+        private final TopK sortedWords;
+
+        TopicFormatter (int topWords) {
+            sortedWords = new TopK(topWords > 0 ? Math.min(topWords, numWords) : numWords);
+        }
+
+        public void format (int topic, TextBuffer output) {
+            sortedWords.clear();
+            for (int word = 0; word < numWords; word++) {
+                sortedWords.add(word, wordTopicCounts[word][topic]);
             }
-            Arrays.sort(sortedWords);
+            sortedWords.sort();
             output.append(topicIndex.getItem(topic))
-                    .append(" ")
-                    .append("count: ")
+                    .append(" count: ")
                     .append(topicCounts[topic])
-                    .append(" ");
-            for (int word = 0; word < numWords; word++) {
-                output.append(wordIndex.getItem(sortedWords[word].getIndex()))
-                        .append(":")
-                        .append(sortedWords[word].getValue())
-                        .append(" ");
+                    .append(' ');
+            for (int rank = 0; rank < sortedWords.size(); rank++) {
+                output.append(wordIndex.getItem(sortedWords.index(rank)))
+                        .append(':')
+                        .append(sortedWords.value(rank))
+                        .append(' ');
             }
-            output.append("\n");
+            output.append('\n');
         }
-        return output.toString();
     }
 
     /**
@@ -180,13 +497,16 @@ public class LDA implements Serializable {
      */
     public class Sampler {
 
+        // scratch space reused between tokens and documents
+        protected final int[] docTopicCounts = new int[numTopics];
+        protected final double[] topicScores = new double[numTopics];
+
         /**
          * Sample the topics for all tokens of a document.
          *
          * @param document an instance of Document for which we sample the topics;
          */
         public void sampleForOneDocument (Document document) {
-            int[] docTopicCounts = new int[numTopics];
             for (int position = 0; position < document.size(); position++) {
                 if (document.getToken(position) >= numWords) {
                     continue;
@@ -206,6 +526,21 @@ public class LDA implements Serializable {
                 docTopicCounts[topic]++;
                 document.setTopic(position, topic);
             }
+            clearDocTopicCounts(document);
+        }
+
+        /**
+         * Reset docTopicCounts to zero after sampling a document, visiting only
+         * the topics that occur in the document.
+         *
+         * @param document the document that has just been sampled;
+         */
+        protected void clearDocTopicCounts (Document document) {
+            for (int position = 0; position < document.size(); position++) {
+                if (document.getToken(position) < numWords) {
+                    docTopicCounts[document.getTopic(position)] = 0;
+                }
+            }
         }
 
         public void increment (int topic, int word) {}
@@ -234,22 +569,21 @@ public class LDA implements Serializable {
          * @return the newly sampled topic.
          */
         public int sample (int word, int[] docTopicCounts) {
-            double[] termTopicScores = new double[numTopics];
             double sum = 0.0;
             for (int topic = 0; topic < numTopics; topic++) {
                 double score = (alpha + docTopicCounts[topic]) *
                                (beta + wordTopicCounts[word][topic]) / (betaSum + topicCounts[topic]);
                 sum += score;
-                termTopicScores[topic] = score;
+                topicScores[topic] = score;
             }
-            // scaled sample because of unnormalized termTopicScores.
+            // scaled sample because of unnormalized topicScores.
             double sample = random.nextUniform() * sum;
             // initialize topic on -1 (no topic)
             int topic = -1;
-            // draw a sample with respect to distribution in termTopicScores
+            // draw a sample with respect to distribution in topicScores
             while (sample > 0.0) {
                 topic++;
-                sample -= termTopicScores[topic];
+                sample -= topicScores[topic];
             }
             if (topic == -1) {
                 throw new IllegalStateException("No topic sampled.");
@@ -263,6 +597,12 @@ public class LDA implements Serializable {
      */
     public class LearnSampler extends LDA.Sampler {
 
+        /**
+         * Bring the state the sampler derives from the counts up to date after the
+         * counts were replaced as a whole, as Parallel.train does every iteration.
+         */
+        public void resync () {}
+
         /**
          * Update the count matrices by incrementing the appropriate counts;
          *
@@ -286,13 +626,410 @@ public class LDA implements Serializable {
         }
     }
 
+    /**
+     * Sampler for training a model following SparseLDA (Yao, Mimno and McCallum, 2009).
+     * The sampling mass of a token is split into three buckets:
+     *
+     *   alpha * beta / (betaSum + n_t)            (smoothing only)
+     *   n_td * beta / (betaSum + n_t)             (document topics)
+     *   (alpha + n_td) * n_wt / (betaSum + n_t)   (topic-word)
+     *
+     * The smoothing bucket is cached over the whole corpus, the document bucket
+     * is cached per document and the topic-word bucket only visits the topics
+     * to which the word is currently assigned. The cost per token therefore depends
+     * on the number of non-zero counts rather than on the number of topics.
+     */
+    public class SparseLearnSampler extends LDA.LearnSampler {
+
+        private final NonZeroColumns wordTopics;
+
+        // per-document state
+        private final int[] docTopics;
+        private int docTopicsSize;
+
+        // cached buckets and coefficients (alpha + n_td) / (betaSum + n_t)
+        private final double[] coefficients;
+        private double smoothingMass;
+        private double documentMass;
+        private int documentsSinceReset;
+
+        public SparseLearnSampler () {
+            wordTopics = new NonZeroColumns(wordTopicCounts, numTopics);
+            docTopics = new int[numTopics];
+            coefficients = new double[numTopics];
+            resetSmoothing();
+        }
+
+        /**
+         * Recompute the smoothing bucket and the coefficients from scratch, which
+         * removes rounding errors accumulated by the incremental updates.
+         */
+        private void resetSmoothing () {
+            smoothingMass = 0.0;
+            for (int topic = 0; topic < numTopics; topic++) {
+                double denominator = betaSum + topicCounts[topic];
+                smoothingMass += alpha * beta / denominator;
+                coefficients[topic] = (alpha + docTopicCounts[topic]) / denominator;
+            }
+            documentsSinceReset = 0;
+        }
+
+        public void resync () {
+            wordTopics.rebuild(wordTopicCounts);
+            resetSmoothing();
+        }
+
+        /**
+         * Sample the topics for all tokens of a document.
+         *
+         * @param document an instance of Document for which we sample the topics;
+         */
+        public void sampleForOneDocument (Document document) {
+            if (++documentsSinceReset > numTopics) {
+                resetSmoothing();
+            }
+            docTopicsSize = 0;
+            documentMass = 0.0;
+            for (int position = 0; position < document.size(); position++) {
+                if (document.getToken(position) >= numWords) {
+                    continue;
+                }
+                int topic = document.getTopic(position);
+                if (docTopicCounts[topic]++ == 0) {
+                    docTopics[docTopicsSize++] = topic;
+                }
+            }
+            for (int i = 0; i < docTopicsSize; i++) {
+                int topic = docTopics[i];
+                double denominator = betaSum + topicCounts[topic];
+                documentMass += beta * docTopicCounts[topic] / denominator;
+                coefficients[topic] = (alpha + docTopicCounts[topic]) / denominator;
+            }
+            for (int position = 0; position < document.size(); position++) {
+                int word = document.getToken(position);
+                if (word >= numWords) {
+                    continue;
+                }
+                int topic = document.getTopic(position);
+                decrement(topic, word);
+                updateDocumentCount(topic, -1);
+                topic = sample(word);
+                updateDocumentCount(topic, 1);
+                increment(topic, word);
+                document.setTopic(position, topic);
+            }
+            // restore the coefficients to their document independent values
+            for (int i = 0; i < docTopicsSize; i++) {
+                int topic = docTopics[i];
+                docTopicCounts[topic] = 0;
+                coefficients[topic] = alpha / (betaSum + topicCounts[topic]);
+            }
+            docTopicsSize = 0;
+            documentMass = 0.0;
+        }
+
+        /**
+         * Change the count of a topic in the current document and update the
+         * document bucket accordingly.
+         *
+         * @param topic the topic to update;
+         * @param delta the change in count (+1 or -1);
+         */
+        private void updateDocumentCount (int topic, int delta) {
+            double denominator = betaSum + topicCounts[topic];
+            documentMass -= beta * docTopicCounts[topic] / denominator;
+            docTopicCounts[topic] += delta;
+            documentMass += beta * docTopicCounts[topic] / denominator;
+            coefficients[topic] = (alpha + docTopicCounts[topic]) / denominator;
+            if (delta > 0 && docTopicCounts[topic] == 1) {
+                docTopics[docTopicsSize++] = topic;
+            } else if (delta < 0 && docTopicCounts[topic] == 0) {
+                for (int i = 0; i < docTopicsSize; i++) {
+                    if (docTopics[i] == topic) {
+                        docTopics[i] = docTopics[--docTopicsSize];
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sample a topic for the current word from the three buckets.
+         *
+         * @param word the word for which we sample a topic;
+         * @return the newly sampled topic.
+         */
+        public int sample (int word) {
+            int[] topics = wordTopics.columns(word);
+            int size = wordTopics.size(word);
+            double topicWordMass = 0.0;
+            for (int i = 0; i < size; i++) {
+                double score = coefficients[topics[i]] * wordTopicCounts[word][topics[i]];
+                topicScores[i] = score;
+                topicWordMass += score;
+            }
+            double sample = random.nextUniform() * (smoothingMass + documentMass + topicWordMass);
+            if (sample < topicWordMass) {
+                for (int i = 0; i < size; i++) {
+                    sample -= topicScores[i];
+                    if (sample <= 0.0) {
+                        return topics[i];
+                    }
+                }
+                return topics[size - 1];
+            }
+            sample -= topicWordMass;
+            if (sample < documentMass) {
+                for (int i = 0; i < docTopicsSize; i++) {
+                    int topic = docTopics[i];
+                    sample -= beta * docTopicCounts[topic] / (betaSum + topicCounts[topic]);
+                    if (sample <= 0.0) {
+                        return topic;
+                    }
+                }
+                return docTopics[docTopicsSize - 1];
+            }
+            sample -= documentMass;
+            for (int topic = 0; topic < numTopics; topic++) {
+                sample -= alpha * beta / (betaSum + topicCounts[topic]);
+                if (sample <= 0.0) {
+                    return topic;
+                }
+            }
+            return numTopics - 1;
+        }
+
+        /**
+         * Update the count matrices, the non-zero topics of the word and
+         * the cached buckets by incrementing the appropriate counts.
+         *
+         * @param topic the topic to update;
+         * @param word the word to update;
+         */
+        public void increment (int topic, int word) {
+            removeTopicMass(topic);
+            super.increment(topic, word);
+            if (wordTopicCounts[word][topic] == 1) {
+                wordTopics.add(word, topic);
+            }
+            addTopicMass(topic);
+        }
+
+        /**
+         * Update the count matrices, the non-zero topics of the word and
+         * the cached buckets by decrementing the appropriate counts.
+         *
+         * @param topic the topic to update;
+         * @param word the word to update;
+         */
+        public void decrement (int topic, int word) {
+            removeTopicMass(topic);
+            super.decrement(topic, word);
+            if (wordTopicCounts[word][topic] == 0) {
+                wordTopics.remove(word, topic);
+            }
+            addTopicMass(topic);
+        }
+
+        private void removeTopicMass (int topic) {
+            double denominator = betaSum + topicCounts[topic];
+            smoothingMass -= alpha * beta / denominator;
+            documentMass -= beta * docTopicCounts[topic] / denominator;
+        }
+
+        private void addTopicMass (int topic) {
+            double denominator = betaSum + topicCounts[topic];
+            smoothingMass += alpha * beta / denominator;
+            documentMass += beta * docTopicCounts[topic] / denominator;
+            coefficients[topic] = (alpha + docTopicCounts[topic]) / denominator;
+        }
+    }
+
+    /**
+     * Sampler for training a model following AliasLDA and LightLDA (Li et al., 2014;
+     * Yuan et al., 2015). Each token runs a short Metropolis-Hastings chain that
+     * alternates between two proposals:
+     *
+     *   word proposal: (beta + n_wt) / (betaSum + n_t), drawn from stale alias tables;
+     *   doc proposal:  (alpha + n_td), drawn by picking a random token of the document;
+     *
+     * The word proposal is split into a sparse table per word over n_wt / (betaSum + n_t)
+     * and one dense table shared by all words over beta / (betaSum + n_t). Tables are
+     * rebuilt lazily once they have served aliasRebuildInterval draws, so the amortized
+     * cost per token does not depend on the number of topics.
+     */
+    public class AliasLearnSampler extends LDA.LearnSampler {
+
+        private final int rebuildInterval;
+
+        private final AliasTable[] wordTables;
+        private final int[] wordDraws;
+        private final AliasTable smoothingTable;
+        private int smoothingDraws;
+
+        // scratch space for building tables
+        private final int[] tableTopics;
+        private final double[] tableWeights;
+
+        public AliasLearnSampler () {
+            rebuildInterval = aliasRebuildInterval > 0 ? aliasRebuildInterval : numTopics;
+            wordTables = new AliasTable[numWords];
+            wordDraws = new int[numWords];
+            smoothingTable = new AliasTable(numTopics);
+            smoothingDraws = rebuildInterval;
+            tableTopics = new int[numTopics];
+            tableWeights = new double[numTopics];
+        }
+
+        /**
+         * Sample the topics for all tokens of a document.
+         *
+         * @param document an instance of Document for which we sample the topics;
+         */
+        public void sampleForOneDocument (Document document) {
+            int docLength = 0;
+            for (int position = 0; position < document.size(); position++) {
+                if (document.getToken(position) >= numWords) {
+                    continue;
+                }
+                docTopicCounts[document.getTopic(position)]++;
+                docLength++;
+            }
+            for (int position = 0; position < document.size(); position++) {
+                int word = document.getToken(position);
+                if (word >= numWords) {
+                    continue;
+                }
+                int topic = document.getTopic(position);
+                decrement(topic, word);
+                docTopicCounts[topic]--;
+                topic = sample(word, topic, document, docLength);
+                increment(topic, word);
+                docTopicCounts[topic]++;
+                document.setTopic(position, topic);
+            }
+            clearDocTopicCounts(document);
+        }
+
+        /**
+         * Run the Metropolis-Hastings chain for the current word. The counts of the current
+         * token have already been removed from the count matrices and docTopicCounts.
+         *
+         * @param word the word for which we sample a topic;
+         * @param current the topic the token was assigned to before sampling;
+         * @param document the document the token belongs to;
+         * @param docLength the number of in-vocabulary tokens of the document;
+         * @return the newly sampled topic.
+         */
+        public int sample (int word, int current, Document document, int docLength) {
+            AliasTable wordTable = wordTable(word);
+            AliasTable smoothing = smoothingTable();
+            double wordMass = wordTable.mass();
+            double smoothingMass = smoothing.mass();
+            double alphaSum = alpha * numTopics;
+            int original = current;
+            double currentScore = score(word, current);
+            for (int step = 0; step < mhSteps; step++) {
+                // word proposal
+                int proposal = random.nextUniform() * (wordMass + smoothingMass) < wordMass
+                        ? wordTable.sample(random) : smoothing.sample(random);
+                if (proposal != current) {
+                    double proposalScore = score(word, proposal);
+                    double acceptance = proposalScore * (wordTable.weight(current) + smoothing.weight(current)) /
+                            (currentScore * (wordTable.weight(proposal) + smoothing.weight(proposal)));
+                    if (acceptance >= 1.0 || random.nextUniform() < acceptance) {
+                        current = proposal;
+                        currentScore = proposalScore;
+                    }
+                }
+                // doc proposal, which includes the original assignment of the token
+                if (random.nextUniform() * (docLength + alphaSum) < docLength) {
+                    proposal = document.getTopic(random.nextInt(document.size()));
+                } else {
+                    proposal = random.nextInt(numTopics);
+                }
+                if (proposal != current) {
+                    double proposalScore = score(word, proposal);
+                    double currentProposal = alpha + docTopicCounts[current] + (current == original ? 1 : 0);
+                    double newProposal = alpha + docTopicCounts[proposal] + (proposal == original ? 1 : 0);
+                    double acceptance = proposalScore * currentProposal / (currentScore * newProposal);
+                    if (acceptance >= 1.0 || random.nextUniform() < acceptance) {
+                        current = proposal;
+                        currentScore = proposalScore;
+                    }
+                }
+            }
+            return current;
+        }
+
+        /**
+         * Return the unnormalized true conditional probability of a topic.
+         *
+         * @param word the word for which we sample a topic;
+         * @param topic the topic to compute the score for;
+         * @return (alpha + n_td) * (beta + n_wt) / (betaSum + n_t)
+         */
+        private double score (int word, int topic) {
+            return (alpha + docTopicCounts[topic]) *
+                   (beta + wordTopicCounts[word][topic]) / (betaSum + topicCounts[topic]);
+        }
+
+        /**
+         * Return the alias table of a word, rebuilding it if it has served its draws.
+         *
+         * @param word the word to look up;
+         * @return the (stale) alias table of the word;
+         */
+        private AliasTable wordTable (int word) {
+            AliasTable table = wordTables[word];
+            if (table == null || wordDraws[word] >= rebuildInterval) {
+                if (table == null) {
+                    table = new AliasTable();
+                    wordTables[word] = table;
+                }
+                int size = 0;
+                for (int topic = 0; topic < numTopics; topic++) {
+                    if (wordTopicCounts[word][topic] > 0) {
+                        tableTopics[size] = topic;
+                        tableWeights[size] = wordTopicCounts[word][topic] / (betaSum + topicCounts[topic]);
+                        size++;
+                    }
+                }
+                table.build(tableTopics, tableWeights, size);
+                wordDraws[word] = 0;
+            }
+            wordDraws[word] += mhSteps;
+            return table;
+        }
+
+        /**
+         * Return the alias table of the smoothing part shared by all words, rebuilding
+         * it if it has served its draws.
+         *
+         * @return the (stale) smoothing alias table;
+         */
+        private AliasTable smoothingTable () {
+            if (smoothingDraws >= rebuildInterval) {
+                for (int topic = 0; topic < numTopics; topic++) {
+                    tableTopics[topic] = topic;
+                    tableWeights[topic] = beta / (betaSum + topicCounts[topic]);
+                }
+                smoothingTable.build(tableTopics, tableWeights, numTopics);
+                smoothingDraws = 0;
+            }
+            smoothingDraws += mhSteps;
+            return smoothingTable;
+        }
+    }
+
     /**
      * Sampler for inference on unseen documents.
      */
     public class InferSampler extends LDA.Sampler {}
 
     /**
-     * Read an existing serialized model from disk.
+     * Read an existing model from disk. Both the binary model format of
+     * ModelFile and models written with object serialization are accepted.
      *
      * @param file the filename of the model to read;
      * @return the model;
@@ -300,6 +1037,16 @@ public class LDA implements Serializable {
      * @throws ClassNotFoundException
      */
     public static LDA read (File file) throws IOException, ClassNotFoundException {
+        if (ModelFile.isModelFile(file)) {
+            LDA lda = new LDA();
+            ModelFile.Reader in = new ModelFile.Reader(file, "LDA");
+            try {
+                lda.read(in);
+            } finally {
+                in.close();
+            }
+            return lda;
+        }
         LDA lda;
         ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(file));
         lda = (LDA) inputStream.readObject();
@@ -307,6 +1054,20 @@ public class LDA implements Serializable {
         return lda;
     }
 
+    private void read (ModelFile.Reader in) throws IOException, ClassNotFoundException {
+        topicCounts = in.readInts("topicCounts");
+        wordTopicCounts = in.readMatrix("wordTopicCounts");
+        alpha = in.readDouble("alpha");
+        beta = in.readDouble("beta");
+        betaSum = in.readDouble("betaSum");
+        numTopics = in.readInt("numTopics");
+        numWords = in.readInt("numWords");
+        random = (Randoms) in.readObject("random");
+        topicIndex = in.readIndex("topicIndex");
+        wordIndex = in.readIndex("wordIndex");
+        trained = in.readBoolean("trained");
+    }
+
     private void readObject (ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
         topicCounts = (int[]) inputStream.readObject();
         wordTopicCounts = (int[][]) inputStream.readObject();
@@ -327,15 +1088,72 @@ public class LDA implements Serializable {
     }
 
     /**
-     * Write a model serialized to disk.
+     * Read a checkpoint written during training and restore the assignments of the
+     * corpus from it, so that train continues after the last checkpointed iteration.
+     * Only a serial run with a fixed number of iterations then samples exactly as it
+     * would have without the interruption: the random streams of the parallel workers
+     * and the history of the convergence check are not part of the checkpoint.
+     *
+     * @param file the checkpoint to read;
+     * @param corpus the corpus the model was trained on, read in the same way;
+     * @return the model;
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static LDA readCheckpoint (File file, Corpus corpus) throws IOException, ClassNotFoundException {
+        LDA lda = new LDA();
+        ModelFile.Reader in = new ModelFile.Reader(file, "LDA");
+        try {
+            lda.read(in);
+            if (lda.numWords != corpus.getNumWords()) {
+                throw new IOException("The checkpoint " + file + " does not match the corpus.");
+            }
+            corpus.restoreTopicAssignments(in.readInts("topicAssignments"));
+            lda.completedIterations = in.readInt("iteration");
+        } finally {
+            in.close();
+        }
+        return lda;
+    }
+
+    /**
+     * Write a model to disk in the binary model format of ModelFile.
      *
      * @param file the name of the file to write the model to;
      * @throws IOException
      */
     public void write (File file) throws IOException {
-        ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(file));
-        outputStream.writeObject(this);
-        outputStream.close();
+        write(file, ModelFile.DENSE);
+    }
+
+    /**
+     * Write a model to disk in the binary model format of ModelFile.
+     *
+     * @param file the name of the file to write the model to;
+     * @param format the encoding of the count matrices, ModelFile.DENSE or ModelFile.SPARSE;
+     * @throws IOException
+     */
+    public void write (File file, String format) throws IOException {
+        ModelFile.Writer out = new ModelFile.Writer(file, "LDA", format);
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void write (ModelFile.Writer out) throws IOException {
+        out.writeInts("topicCounts", topicCounts);
+        out.writeMatrix("wordTopicCounts", wordTopicCounts);
+        out.writeDouble("alpha", alpha);
+        out.writeDouble("beta", beta);
+        out.writeDouble("betaSum", betaSum);
+        out.writeInt("numTopics", numTopics);
+        out.writeInt("numWords", numWords);
+        out.writeObject("random", random);
+        out.writeIndex("topicIndex", topicIndex);
+        out.writeIndex("wordIndex", wordIndex);
+        out.writeBoolean("trained", trained);
     }
 
     private void writeObject (ObjectOutputStream outputStream) throws IOException {
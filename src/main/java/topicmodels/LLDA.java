@@ -5,6 +5,10 @@ import util.*;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 /**
@@ -18,10 +22,10 @@ import java.util.logging.Logger;
  * @author Folgert Karsdorp
  */
 public class LLDA implements Serializable {
+    private static final long serialVersionUID = -979879836168222091L;
     public static Logger logger = Logger.getLogger(LLDA.class.getName());
 
     LLDA.LearnSampler learnSampler;
-    LLDA.InferSampler inferSampler;
 
     public int numTopics;
     public int numWords;
@@ -42,6 +46,40 @@ public class LLDA implements Serializable {
     protected Randoms random;
     protected Boolean trained = false;
 
+    // the number of threads to use for training
+    public int numThreads = 1;
+    // with several threads, train the connected components of the label co-occurrence
+    // graph concurrently, which is exact, instead of following AD-LDA
+    public boolean labelComponents = false;
+
+    // write a checkpoint to checkpointFile every checkpointInterval iterations (0 means never)
+    public int checkpointInterval = 0;
+    public File checkpointFile;
+
+    // decides the number of sweeps per document during inference (null means a fixed number of iterations)
+    public SweepSchedule sweepSchedule;
+
+    // shortlist the labels of an unseen document during inference: the candidateLabels most
+    // probable labels of each of its words (0 means all labels) and, with documentCandidates,
+    // the labels given with the document. With exactFallback, labels outside the shortlist
+    // keep their share of the probability mass, so that the sampler stays exact.
+    public int candidateLabels = 0;
+    public boolean documentCandidates = false;
+    public boolean exactFallback = false;
+
+    // report the log-likelihood during training and decide when to stop early (null means never)
+    public Convergence convergence;
+    // cached lgamma tables for the log-likelihood
+    private transient LogLikelihood.Table alphaTable, betaTable;
+
+    // the number of iterations done before the checkpoint this model was resumed from
+    private int completedIterations = 0;
+
+    // tables shared by all inference samplers, built once per model
+    protected transient InferenceContext inferenceContext;
+    // the per-word label shortlists, built once per value of candidateLabels
+    protected transient CandidateIndex candidateIndex;
+
     /**
      * Initialize an instance of LLDA.
      *
@@ -67,6 +105,33 @@ public class LLDA implements Serializable {
         //logger.setUseParentHandlers(false);
     }
 
+    /**
+     * Create an empty model, of which the fields are set by read.
+     */
+    private LLDA () {}
+
+    /**
+     * A worker copy for trainParallel and Checkpoint, with empty label counts.
+     *
+     * @param model the model to copy;
+     * @param seed the random seed of the worker;
+     */
+    private LLDA (LLDA model, long seed) {
+        numTopics = model.numTopics;
+        numWords = model.numWords;
+        alpha = model.alpha;
+        beta = model.beta;
+        betaSum = model.betaSum;
+
+        topicCounts = new int[numTopics];
+        wordTopicCounts = new int[numWords][numTopics];
+
+        topicIndex = model.topicIndex;
+        wordIndex = model.wordIndex;
+
+        random = new Randoms(seed);
+    }
+
     /**
      * Given a corpus, where each document has been assigned to a set of topics,
      * learn the topic distributions per document, and the word distributions of topics.
@@ -74,21 +139,225 @@ public class LLDA implements Serializable {
      * @param iterations how many iterations to run the sampler;
      * @param corpus the corpus to run the sampler on;
      */
-    public void train (int iterations, Corpus corpus) {
+    public void train (int iterations, final Corpus corpus) {
+        corpus.allocateTopicAssignments();
         learnSampler = new LLDA.LearnSampler();
-        for (Document document : corpus) {
-            learnSampler.addDocument(document);
-        }
-        logger.info("Sampler initialized. " + numTopics + " topics and " + corpus.size() + " documents.");
-        for (int iteration = 1; iteration <= iterations; iteration++) {
-            logger.info("Sampling iteration " + iteration + " started.");
+        int first = completedIterations + 1;
+        completedIterations = 0;
+        if (first == 1) {
             for (Document document : corpus) {
-                learnSampler.sampleForOneDocument(document);
+                learnSampler.addDocument(document);
+            }
+            logger.info("Sampler initialized. " + numTopics + " topics and " + corpus.size() + " documents.");
+        } else {
+            logger.info("Sampler resumed at iteration " + first + ". " + numTopics + " topics and " + corpus.size() + " documents.");
+        }
+        Checkpointer<Checkpoint> checkpointer = newCheckpointer(corpus);
+        try {
+            if (numThreads > 1 && labelComponents) {
+                trainComponents(first, iterations, corpus, checkpointer);
+            } else if (numThreads > 1) {
+                trainParallel(first, iterations, corpus, checkpointer);
+            } else {
+                Convergence.Likelihood likelihood = new Convergence.Likelihood() {
+                    public double compute () {
+                        return logLikelihood(corpus, null);
+                    }
+                };
+                for (int iteration = first; iteration <= iterations; iteration++) {
+                    logger.info("Sampling iteration " + iteration + " started.");
+                    for (Document document : corpus) {
+                        learnSampler.sampleForOneDocument(document);
+                    }
+                    checkpoint(checkpointer, corpus, iteration);
+                    if (convergence != null && convergence.isDueAndConverged(iteration, likelihood, corpus.getNumTokens())) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            if (checkpointer != null) {
+                checkpointer.close();
             }
         }
         trained = true;
     }
 
+    /**
+     * Run the sampler on numThreads threads with Parallel.train, each thread
+     * sampling against the counts of its own worker copy of the model.
+     *
+     * @param first the first iteration to run;
+     * @param iterations the number of iterations to run the sampler;
+     * @param corpus the corpus to run the sampler on;
+     * @param checkpointer the checkpointer to use, or null;
+     */
+    private void trainParallel (int first, int iterations, final Corpus corpus, final Checkpointer<Checkpoint> checkpointer) {
+        List<Parallel.Worker> workers = new ArrayList<Parallel.Worker>(numThreads);
+        for (int thread = 0; thread < numThreads; thread++) {
+            final LLDA worker = new LLDA(this, random.nextLong());
+            final LearnSampler workerSampler = worker.new LearnSampler();
+            workers.add(new Parallel.Worker() {
+                public int[][][] matrices () { return new int[][][] {worker.wordTopicCounts}; }
+                public int[][] vectors () { return new int[][] {worker.topicCounts}; }
+                public void sample (List<Document> documents) {
+                    for (Document document : documents) {
+                        workerSampler.sampleForOneDocument(document);
+                    }
+                }
+            });
+        }
+        Parallel.train(corpus, first, iterations, new int[][][] {wordTopicCounts}, new int[][] {topicCounts},
+                workers, new Parallel.IterationListener() {
+                    public boolean finished (int iteration, final ExecutorService pool) {
+                        checkpoint(checkpointer, corpus, iteration);
+                        return convergence != null && convergence.isDueAndConverged(iteration, new Convergence.Likelihood() {
+                            public double compute () {
+                                return logLikelihood(corpus, pool);
+                            }
+                        }, corpus.getNumTokens());
+                    }
+                });
+    }
+
+    /**
+     * Run the sampler on numThreads threads, one block of connected components of the
+     * label co-occurrence graph per thread (see LabelComponents). The documents of a
+     * component are only assigned to the labels of the component, so the threads
+     * update disjoint columns of the shared count matrices and nothing has to be
+     * merged. Every component has its own random number generator, so the result is
+     * exactly that of sampling the components one after the other and does not depend
+     * on the number of threads. The speed-up is bounded by the largest component.
+     *
+     * @param first the first iteration to run;
+     * @param iterations the number of iterations to run the sampler;
+     * @param corpus the corpus to run the sampler on;
+     * @param checkpointer the checkpointer to use, or null;
+     */
+    private void trainComponents (int first, int iterations, final Corpus corpus, Checkpointer<Checkpoint> checkpointer) {
+        final LabelComponents components = new LabelComponents(corpus, numTopics);
+        List<List<Integer>> schedule = components.schedule(numThreads);
+        long largest = 0;
+        for (int component = 0; component < components.size(); component++) {
+            largest = Math.max(largest, components.numTokens(component));
+        }
+        logger.info("Training " + components.size() + " label components on " + numThreads + " threads. "
+                + "The largest component holds " + largest + " of " + corpus.getNumTokens() + " tokens.");
+        final Randoms[] randoms = new Randoms[components.size()];
+        for (int component = 0; component < components.size(); component++) {
+            randoms[component] = new Randoms(random.nextLong());
+        }
+        final ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        Convergence.Likelihood likelihood = new Convergence.Likelihood() {
+            public double compute () {
+                return logLikelihood(corpus, pool);
+            }
+        };
+        try {
+            for (int iteration = first; iteration <= iterations; iteration++) {
+                logger.info("Sampling iteration " + iteration + " started.");
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numThreads);
+                for (final List<Integer> part : schedule) {
+                    if (part.isEmpty()) {
+                        continue;
+                    }
+                    tasks.add(new Callable<Void>() {
+                        public Void call () {
+                            LearnSampler workerSampler = new LearnSampler();
+                            for (int component : part) {
+                                workerSampler.random = randoms[component];
+                                for (Document document : components.documents(component)) {
+                                    workerSampler.sampleForOneDocument(document);
+                                }
+                            }
+                            return null;
+                        }
+                    });
+                }
+                Parallel.invokeAll(pool, tasks);
+                checkpoint(checkpointer, corpus, iteration);
+                if (convergence != null && convergence.isDueAndConverged(iteration, likelihood, corpus.getNumTokens())) {
+                    break;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Compute the joint log-likelihood log p(w, z) of the words of a corpus and their
+     * topic assignments, with the topic distributions, which are restricted to the
+     * labels of each document, and the word distributions integrated out.
+     *
+     * @param corpus the corpus the model is trained on;
+     * @return the log-likelihood;
+     */
+    public double logLikelihood (Corpus corpus) {
+        return logLikelihood(corpus, null);
+    }
+
+    private double logLikelihood (Corpus corpus, ExecutorService pool) {
+        alphaTable = LogLikelihood.table(alphaTable, alpha);
+        betaTable = LogLikelihood.table(betaTable, beta);
+        int[] docTopicCounts = new int[numTopics];
+        double value = 0.0;
+        for (Document document : corpus) {
+            for (int position = 0; position < document.size(); position++) {
+                docTopicCounts[document.getTopic(position)]++;
+            }
+            alphaTable.ensureSize(document.size());
+            value += LogLikelihood.symmetric(docTopicCounts, document.getLabels(), document.size(), alpha, alphaTable);
+        }
+        return value + LogLikelihood.topicWords(wordTopicCounts, topicCounts, 0, numTopics, beta, betaTable, pool, numThreads);
+    }
+
+    private Checkpointer<Checkpoint> newCheckpointer (Corpus corpus) {
+        if (checkpointInterval <= 0 || checkpointFile == null) {
+            return null;
+        }
+        return new Checkpointer<Checkpoint>(checkpointFile, "LLDA", checkpointInterval,
+                new Checkpoint(corpus), new Checkpoint(corpus));
+    }
+
+    private void checkpoint (Checkpointer<Checkpoint> checkpointer, Corpus corpus, int iteration) {
+        if (checkpointer != null && checkpointer.isDue(iteration)) {
+            Checkpoint checkpoint = checkpointer.acquire();
+            checkpoint.copy(corpus, iteration);
+            checkpointer.submit(checkpoint);
+        }
+    }
+
+    /**
+     * A copy of the counts, assignments and random number generator of a training
+     * run, which is written as a model file extended with the token assignments
+     * and the number of finished iterations.
+     */
+    private class Checkpoint implements Checkpointer.Snapshot {
+
+        private final LLDA model = new LLDA(LLDA.this, 0);
+        private final int[] topicAssignments;
+        private int iteration;
+
+        Checkpoint (Corpus corpus) {
+            topicAssignments = new int[corpus.getNumTokens()];
+        }
+
+        void copy (Corpus corpus, int iteration) {
+            this.iteration = iteration;
+            Parallel.copy(wordTopicCounts, model.wordTopicCounts);
+            System.arraycopy(topicCounts, 0, model.topicCounts, 0, topicCounts.length);
+            model.random = random.copy();
+            corpus.copyTopicAssignments(topicAssignments);
+        }
+
+        public void write (ModelFile.Writer out) throws IOException {
+            model.write(out);
+            out.writeInt("iteration", iteration);
+            out.writeInts("topicAssignments", topicAssignments);
+        }
+    }
+
     /**
      * Given a corpus of test documents, try to assign to each token
      * a topic based on a previously learned LLDA model.
@@ -97,19 +366,89 @@ public class LLDA implements Serializable {
      * @param corpus the corpus to run the sampler on;
      */
     public void infer (int iterations, Corpus corpus, double alpha) {
+        corpus.allocateTopicAssignments();
         //logger.setUseParentHandlers(false);
         this.alpha = alpha / numTopics;
-        for (Document document : corpus) {
-            inferSampler = new LLDA.InferSampler();
-            inferSampler.addDocument(document);
-            //logger.info("Sampler initialized. " + numTopics + " topics and " + corpus.size() + " documents.");
+        if (inferenceContext == null) {
+            inferenceContext = new InferenceContext();
+        }
+        if (!isPruned()) {
+            candidateIndex = null;
+        } else if (candidateIndex == null || candidateIndex.size != candidateLabels) {
+            candidateIndex = new CandidateIndex(candidateLabels);
+            logger.info("Shortlisting the " + candidateLabels + " most probable labels per word.");
+        }
+        inferParallel(iterations, corpus);
+        if (sweepSchedule != null) {
+            sweepSchedule.log(logger);
+        }
+    }
+
+    /**
+     * Run inference on numThreads threads. Documents are independent during
+     * inference, so each document gets its own sampler and a random number generator
+     * seeded from its position in the corpus, which makes the assignments the same
+     * for any number of threads, including one.
+     *
+     * @param iterations how many iterations to run the sampler;
+     * @param corpus the corpus to run the sampler on;
+     */
+    private void inferParallel (final int iterations, Corpus corpus) {
+        Parallel.forEachDocument(corpus, numThreads, random.nextLong(), new Parallel.DocumentTask() {
+            public void process (Document document, Randoms random) {
+                InferSampler sampler = new InferSampler(random);
+                sampler.addDocument(document);
+                sweep(sampler, document, iterations);
+            }
+        });
+    }
+
+    /**
+     * @return true if inference samples over a shortlist of labels rather than all labels;
+     */
+    private boolean isPruned () {
+        return candidateLabels > 0 || documentCandidates;
+    }
+
+    /**
+     * Sample the assignments of a document during inference, for the given number of
+     * iterations, or until it has converged if sweepSchedule is set.
+     *
+     * @param sampler the sampler of the document;
+     * @param document the document to sample;
+     * @param iterations the number of iterations to run without a sweepSchedule;
+     */
+    private void sweep (InferSampler sampler, Document document, int iterations) {
+        if (sweepSchedule == null) {
             for (int iteration = 1; iteration <= iterations; iteration++) {
-                //logger.info("Sampling iteration " + iteration + " started.");
-               inferSampler.sampleForOneDocument(document);
+                sampler.sampleForOneDocument(document);
             }
+            return;
+        }
+        SweepSchedule.Tracker tracker = sweepSchedule.track(document, numTopics, numWords);
+        boolean sampling = true;
+        while (sampling) {
+            sampling = tracker.next(sampler.sampleForOneDocument(document));
         }
     }
 
+    /**
+     * Estimate the per-word perplexity of held-out documents under this model with
+     * the left-to-right particle method. As during inference, the labels of the
+     * documents are ignored and every topic is a candidate. The documents are
+     * streamed from the file and evaluated on numThreads threads.
+     *
+     * @param filename the file holding the held-out documents, in the format of Corpus.readFile;
+     * @param alpha smoothing parameter over the topic distribution, divided over the topics as in infer;
+     * @param numParticles the number of particles per document;
+     * @return the log-likelihood and perplexity of the documents;
+     * @throws IOException
+     */
+    public LeftToRight.Result evaluate (String filename, double alpha, int numParticles) throws IOException {
+        LeftToRight evaluator = new LeftToRight(wordTopicCounts, topicCounts, alpha / numTopics, beta, betaSum, numParticles);
+        return evaluator.evaluate(filename, wordIndex, numThreads, random.nextLong());
+    }
+
     /**
      * Write the either learned or inferred topic distributions to a file.
      *
@@ -124,18 +463,9 @@ public class LLDA implements Serializable {
         for (Document document : corpus) {
             printer.print(document.getSource() + "\t");
             IDSorter[] sortedTopics = new IDSorter[numTopics];
-            int[] topicCounts = new int[numTopics];
-            int docLen = 0;
-            for (int position = 0; position < document.size(); position++) {
-                int word = document.getToken(position);
-                if (word >= numWords) {
-                    continue;
-                }
-                docLen++;
-                topicCounts[document.getTopic(position)]++;
-            }
+            double[] proportions = topicProportions(document, smooth);
             for (int topic = 0; topic < numTopics; topic++) {
-                sortedTopics[topic] = new IDSorter(topic, (alpha + topicCounts[topic]) / (docLen + numTopics * alpha));
+                sortedTopics[topic] = new IDSorter(topic, proportions[topic]);
             }
             Arrays.sort(sortedTopics);
             for (int index = 0; index < numTopics; index++) {
@@ -150,19 +480,83 @@ public class LLDA implements Serializable {
         printer.close();
     }
 
+    /**
+     * Compute the topic proportions of a document from its topic assignments,
+     * ignoring words that are unknown to the model.
+     *
+     * @param document the document;
+     * @param smooth parameter to use for smoothing the topic distribution;
+     * @return the proportion of each topic;
+     */
+    private double[] topicProportions (Document document, double smooth) {
+        int[] topicCounts = new int[numTopics];
+        int docLen = 0;
+        for (int position = 0; position < document.size(); position++) {
+            int word = document.getToken(position);
+            if (word >= numWords) {
+                continue;
+            }
+            docLen++;
+            topicCounts[document.getTopic(position)]++;
+        }
+        double[] proportions = new double[numTopics];
+        for (int topic = 0; topic < numTopics; topic++) {
+            proportions[topic] = (alpha + topicCounts[topic]) / (docLen + numTopics * alpha);
+        }
+        return proportions;
+    }
+
+    /**
+     * Export the topic distributions of the documents (theta) and the word
+     * distributions of the topics (phi) as float32 matrices, see MatrixExport.
+     * Theta holds the proportions written by writeTopicDistributions.
+     *
+     * @param directory the directory to write the matrices to;
+     * @param corpus the corpus containing the topic assignments;
+     * @param smooth parameter to use for smoothing the topic distributions;
+     * @throws IOException
+     */
+    public void exportMatrices (File directory, Corpus corpus, double smooth) throws IOException {
+        MatrixExport.writeSources(new File(directory, "documents.tsv"), corpus);
+        MatrixExport.writeLabels(new File(directory, "topics.tsv"), topicIndex, numTopics);
+        MatrixExport.writeLabels(new File(directory, "words.tsv"), wordIndex, numWords);
+        MatrixExport.Writer theta = new MatrixExport.Writer(directory, "theta", corpus.size(), numTopics, "documents.tsv", "topics.tsv");
+        for (Document document : corpus) {
+            theta.writeRow(topicProportions(document, smooth));
+        }
+        theta.close();
+        MatrixExport.Writer phi = new MatrixExport.Writer(directory, "phi", numTopics, numWords, "topics.tsv", "words.tsv");
+        double[] row = new double[numWords];
+        for (int topic = 0; topic < numTopics; topic++) {
+            for (int word = 0; word < numWords; word++) {
+                row[word] = (beta + wordTopicCounts[word][topic]) / (betaSum + topicCounts[topic]);
+            }
+            phi.writeRow(row);
+        }
+        phi.close();
+    }
+
     /**
      * Base sampler, sub-classed by LearnSampler and InferSampler.
      */
     public class Sampler {
 
+        // the random number generator of this sampler
+        protected Randoms random = LLDA.this.random;
+
+        // scratch space reused between tokens and documents
+        protected final int[] docTopicCounts = new int[numTopics];
+        protected final double[] topicScores = new double[numTopics];
+
         /**
          * Sample the topics for all tokens of a document.
          *
          * @param document an instance of Document for which we sample the topics;
          * @param labels the set of possible labels to sample from for this document;
+         * @return the number of tokens that were assigned a different topic;
          */
-        public void sampleForOneDocument (Document document, ArrayList<Integer> labels) {
-            int[] docTopicCounts = new int[numTopics];
+        public int sampleForOneDocument (Document document, ArrayList<Integer> labels) {
+            int changes = 0;
             for (int position = 0; position < document.size(); position++) {
                 if (document.getToken(position) >= numWords) {
                     continue;
@@ -183,17 +577,27 @@ public class LLDA implements Serializable {
                 increment(topic, word);
                 docTopicCounts[topic]++;
                 // assign the topic
+                if (topic != document.getTopic(position)) {
+                    changes++;
+                }
                 document.setTopic(position, topic);
             }
+            for (int position = 0; position < document.size(); position++) {
+                if (document.getToken(position) < numWords) {
+                    docTopicCounts[document.getTopic(position)] = 0;
+                }
+            }
+            return changes;
         }
 
         /**
          * Sample the topics for all tokens of a document.
          *
          * @param document an instance of Document for which we sample the topics;
+         * @return the number of tokens that were assigned a different topic;
          */
-        public void sampleForOneDocument (Document document) {
-            sampleForOneDocument(document, document.getLabels());
+        public int sampleForOneDocument (Document document) {
+            return sampleForOneDocument(document, document.getLabels());
         }
 
         /**
@@ -228,19 +632,18 @@ public class LLDA implements Serializable {
          * @return the sampled topic
          */
         public int sample (int word, ArrayList<Integer> labels, int[] docTopicCounts) {
-            double[] topicTermScores = new double[labels.size()];
             double sum = 0.0;
             for (int i = 0; i < labels.size(); i++) {
                 int topic = labels.get(i);
                 double score = score(word, topic, docTopicCounts);
                 sum += score;
-                topicTermScores[i] = score;
+                topicScores[i] = score;
             }
             double sample = random.nextUniform() * sum;
             int topic = -1;
             while (sample > 0.0) {
                 topic++;
-                sample -= topicTermScores[topic];
+                sample -= topicScores[topic];
             }
             if (topic == -1) {
                 throw new IllegalStateException("No topic sampled.");
@@ -313,21 +716,24 @@ public class LLDA implements Serializable {
     }
 
     /**
-     * Sampler for inference on unseen documents.
+     * Tables needed by every inference sampler that only depend on the trained
+     * counts. They are computed once, when the model is read or first used for
+     * inference, and shared by all (possibly concurrent) samplers.
      */
-    public class InferSampler extends LLDA.Sampler {
+    public class InferenceContext {
 
-        private int[][] docWordTopicCounts;
-        private int[] bestTopicForWord;
-
-        private ArrayList<Integer> documentTopics;
+        // the topic with the highest count for each word, used for initialization
+        public final int[] bestTopicForWord;
+        // all topics, which are the candidate labels of an unseen document
+        public final ArrayList<Integer> documentTopics;
+        // the smoothed topic totals: betaSum + topicCounts[topic]
+        public final double[] topicDenominators;
 
-        public InferSampler () {
-            documentTopics = new ArrayList<Integer>();
+        public InferenceContext () {
+            documentTopics = new ArrayList<Integer>(numTopics);
             for (int topic = 0; topic < numTopics; topic++) {
                 documentTopics.add(topic);
             }
-            docWordTopicCounts = new int[numWords][numTopics];
 
             bestTopicForWord = new int[numWords];
             for (int word = 0; word < numWords; word++) {
@@ -344,6 +750,86 @@ public class LLDA implements Serializable {
                 }
                 bestTopicForWord[word] = bestTopic;
             }
+
+            topicDenominators = new double[numTopics];
+            for (int topic = 0; topic < numTopics; topic++) {
+                topicDenominators[topic] = betaSum + topicCounts[topic];
+            }
+        }
+    }
+
+    /**
+     * The labels to shortlist for each word during candidate-pruned inference, which
+     * only depend on the trained counts. Labels are ranked by p(w|t) and only labels
+     * to which the word was assigned during training are shortlisted.
+     */
+    public class CandidateIndex {
+
+        // the number of labels shortlisted per word
+        public final int size;
+        // the shortlisted labels of each word, most probable first
+        public final int[][] topLabelsForWord;
+        // the sum of p(w|t) = (beta + n_wt) / (betaSum + n_t) over all labels, for each word
+        public final double[] wordMasses;
+
+        public CandidateIndex (int size) {
+            this.size = size;
+            double[] topicDenominators = inferenceContext.topicDenominators;
+            topLabelsForWord = new int[numWords][];
+            wordMasses = new double[numWords];
+            TopK topLabels = new TopK(Math.max(Math.min(size, numTopics), 1));
+            for (int word = 0; word < numWords; word++) {
+                int[] counts = wordTopicCounts[word];
+                double mass = 0.0;
+                topLabels.clear();
+                for (int topic = 0; topic < numTopics; topic++) {
+                    double probability = (beta + counts[topic]) / topicDenominators[topic];
+                    mass += probability;
+                    if (size > 0 && counts[topic] > 0) {
+                        topLabels.add(topic, probability);
+                    }
+                }
+                topLabels.sort();
+                topLabelsForWord[word] = new int[topLabels.size()];
+                for (int rank = 0; rank < topLabels.size(); rank++) {
+                    topLabelsForWord[word][rank] = topLabels.index(rank);
+                }
+                wordMasses[word] = mass;
+            }
+        }
+    }
+
+    /**
+     * Sampler for inference on unseen documents.
+     */
+    public class InferSampler extends LLDA.Sampler {
+
+        // sparse overlay of the word-topic counts of the current document
+        private SparseCounts docWordTopicCounts;
+        private int[] bestTopicForWord;
+        private double[] topicDenominators;
+
+        private ArrayList<Integer> documentTopics;
+
+        // the labels sampled over for the current document, which are all labels
+        // unless candidate pruning is on, and which labels are among them
+        private ArrayList<Integer> candidates;
+        private boolean[] isCandidate;
+
+        public InferSampler () {
+            if (inferenceContext == null) {
+                inferenceContext = new InferenceContext();
+            }
+            documentTopics = inferenceContext.documentTopics;
+            bestTopicForWord = inferenceContext.bestTopicForWord;
+            topicDenominators = inferenceContext.topicDenominators;
+            docWordTopicCounts = new SparseCounts();
+            candidates = documentTopics;
+        }
+
+        public InferSampler (Randoms random) {
+            this();
+            this.random = random;
         }
 
         /**
@@ -353,17 +839,56 @@ public class LLDA implements Serializable {
          * @param document an instance of Document for which to do the random assignments;
          */
         public void addDocument (Document document) {
+            candidates = candidateIndex != null ? shortlist(document) : documentTopics;
             for (int position = 0; position < document.size(); position++) {
                 int word = document.getToken(position);
                 // We ignore all OOV types
                 if (word < numWords) {
                     int topic = bestTopicForWord[word];
+                    if (candidates != documentTopics && !isCandidate[topic]) {
+                        int[] topLabels = candidateIndex.topLabelsForWord[word];
+                        topic = topLabels.length > 0 ? topLabels[0] : random.choice(candidates);
+                    }
                     increment(topic, word);
                     document.setTopic(position, topic);
                 }
             }
         }
 
+        /**
+         * Collect the shortlisted labels of a document: the labels given with the document
+         * if documentCandidates is set and the top labels of each of its words.
+         *
+         * @param document the document;
+         * @return the shortlist, or all labels if the shortlist is empty;
+         */
+        private ArrayList<Integer> shortlist (Document document) {
+            ArrayList<Integer> shortlist = new ArrayList<Integer>();
+            isCandidate = new boolean[numTopics];
+            if (documentCandidates) {
+                for (int label : document.getLabels()) {
+                    // labels unknown to the model were added to the index after training
+                    if (label < numTopics && !isCandidate[label]) {
+                        isCandidate[label] = true;
+                        shortlist.add(label);
+                    }
+                }
+            }
+            for (int position = 0; position < document.size(); position++) {
+                int word = document.getToken(position);
+                if (word >= numWords) {
+                    continue;
+                }
+                for (int label : candidateIndex.topLabelsForWord[word]) {
+                    if (!isCandidate[label]) {
+                        isCandidate[label] = true;
+                        shortlist.add(label);
+                    }
+                }
+            }
+            return shortlist.isEmpty() ? documentTopics : shortlist;
+        }
+
         /**
          * Update the count matrices by incrementing the appropriate counts.
          *
@@ -371,7 +896,7 @@ public class LLDA implements Serializable {
          * @param word the word to update;
          */
         public void increment (int topic, int word) {
-            docWordTopicCounts[word][topic]++;
+            docWordTopicCounts.increment(word, topic);
         }
 
         /**
@@ -381,16 +906,69 @@ public class LLDA implements Serializable {
          * @param word the word to update;
          */
         public void decrement (int topic, int word) {
-            docWordTopicCounts[word][topic]--;
+            docWordTopicCounts.decrement(word, topic);
         }
 
         /**
          * Sample the topics for all tokens in the document.
          *
          * @param document an instance of Document for which we sample the topics;
+         * @return the number of tokens that were assigned a different topic;
          */
-        public void sampleForOneDocument (Document document) {
-            sampleForOneDocument(document, documentTopics);
+        public int sampleForOneDocument (Document document) {
+            return sampleForOneDocument(document, candidates);
+        }
+
+        /**
+         * Sample a topic for the current word. With exactFallback, the labels outside
+         * the shortlist of the document share the mass alpha * p(w|t), because they are
+         * not assigned to any token of the document. That mass is the mass of all labels
+         * for the word minus the mass of the shortlist, so only the rare tokens that draw
+         * a label outside the shortlist visit all labels. The drawn label then joins the
+         * shortlist.
+         *
+         * @param word the word for which we sample a topic;
+         * @param labels the set of labels to sample a topic from;
+         * @param docTopicCounts for each topic, how often does it occur in the document under investigation?
+         * @return the sampled topic
+         */
+        public int sample (int word, ArrayList<Integer> labels, int[] docTopicCounts) {
+            if (!exactFallback || labels != candidates || candidates == documentTopics || candidates.size() == numTopics) {
+                return super.sample(word, labels, docTopicCounts);
+            }
+            double sum = 0.0;
+            double shortlistMass = 0.0;
+            for (int i = 0; i < labels.size(); i++) {
+                int topic = labels.get(i);
+                double score = score(word, topic, docTopicCounts);
+                sum += score;
+                topicScores[i] = score;
+                shortlistMass += (beta + wordTopicCounts[word][topic]) / topicDenominators[topic];
+            }
+            double outsideMass = alpha * Math.max(candidateIndex.wordMasses[word] - shortlistMass, 0.0);
+            double sample = random.nextUniform() * (sum + outsideMass);
+            if (sample < sum) {
+                int index = -1;
+                while (sample > 0.0 && index < labels.size() - 1) {
+                    index++;
+                    sample -= topicScores[index];
+                }
+                return labels.get(Math.max(index, 0));
+            }
+            sample -= sum;
+            int topic = -1;
+            for (int label = 0; label < numTopics && (topic == -1 || sample > 0.0); label++) {
+                if (!isCandidate[label]) {
+                    topic = label;
+                    sample -= alpha * (beta + wordTopicCounts[word][label]) / topicDenominators[label];
+                }
+            }
+            if (topic == -1) {
+                throw new IllegalStateException("No topic sampled.");
+            }
+            isCandidate[topic] = true;
+            candidates.add(topic);
+            return topic;
         }
 
 
@@ -404,13 +982,14 @@ public class LLDA implements Serializable {
          */
         public double score (int word, int topic, int[] docTopicCounts) {
             return (alpha + docTopicCounts[topic]) *
-                    ((beta + docWordTopicCounts[word][topic] + wordTopicCounts[word][topic]) /
-                     (betaSum + docTopicCounts[topic] + topicCounts[topic]));
+                    ((beta + docWordTopicCounts.get(word, topic) + wordTopicCounts[word][topic]) /
+                     (topicDenominators[topic] + docTopicCounts[topic]));
         }
     }
 
     /**
-     * Read an existing serialized model from disk.
+     * Read an existing model from disk. Both the binary model format of
+     * ModelFile and models written with object serialization are accepted.
      *
      * @param file the filename of the model to read;
      * @return the model;
@@ -418,13 +997,39 @@ public class LLDA implements Serializable {
      * @throws ClassNotFoundException
      */
     public static LLDA read (File file) throws IOException, ClassNotFoundException {
+        if (ModelFile.isModelFile(file)) {
+            LLDA llda = new LLDA();
+            ModelFile.Reader in = new ModelFile.Reader(file, "LLDA");
+            try {
+                llda.read(in);
+            } finally {
+                in.close();
+            }
+            llda.inferenceContext = llda.new InferenceContext();
+            return llda;
+        }
         LLDA llda;
         ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(file));
         llda = (LLDA) inputStream.readObject();
         inputStream.close();
+        llda.inferenceContext = llda.new InferenceContext();
         return llda;
     }
 
+    private void read (ModelFile.Reader in) throws IOException, ClassNotFoundException {
+        topicCounts = in.readInts("topicCounts");
+        wordTopicCounts = in.readMatrix("wordTopicCounts");
+        alpha = in.readDouble("alpha");
+        beta = in.readDouble("beta");
+        betaSum = in.readDouble("betaSum");
+        numTopics = in.readInt("numTopics");
+        numWords = in.readInt("numWords");
+        random = (Randoms) in.readObject("random");
+        topicIndex = in.readIndex("topicIndex");
+        wordIndex = in.readIndex("wordIndex");
+        trained = in.readBoolean("trained");
+    }
+
     private void readObject (ObjectInputStream inputStream) throws IOException, ClassNotFoundException {
         topicCounts = (int[]) inputStream.readObject();
         wordTopicCounts = (int[][]) inputStream.readObject();
@@ -445,15 +1050,72 @@ public class LLDA implements Serializable {
     }
 
     /**
-     * Write a model serialized to disk.
+     * Read a checkpoint written during training and restore the assignments of the
+     * corpus from it, so that train continues after the last checkpointed iteration.
+     * The random streams of the parallel workers and label components and the history
+     * of the convergence check are not saved, so a resumed run only repeats the samples
+     * of an uninterrupted one when it is serial and runs a fixed number of iterations.
+     *
+     * @param file the checkpoint to read;
+     * @param corpus the corpus the model was trained on, read in the same way;
+     * @return the model;
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static LLDA readCheckpoint (File file, Corpus corpus) throws IOException, ClassNotFoundException {
+        LLDA llda = new LLDA();
+        ModelFile.Reader in = new ModelFile.Reader(file, "LLDA");
+        try {
+            llda.read(in);
+            if (llda.numWords != corpus.getNumWords()) {
+                throw new IOException("The checkpoint " + file + " does not match the corpus.");
+            }
+            corpus.restoreTopicAssignments(in.readInts("topicAssignments"));
+            llda.completedIterations = in.readInt("iteration");
+        } finally {
+            in.close();
+        }
+        return llda;
+    }
+
+    /**
+     * Write a model to disk in the binary model format of ModelFile.
      *
      * @param file the name of the file to write the model to;
      * @throws IOException
      */
     public void write (File file) throws IOException {
-        ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(file));
-        outputStream.writeObject(this);
-        outputStream.close();
+        write(file, ModelFile.DENSE);
+    }
+
+    /**
+     * Write a model to disk in the binary model format of ModelFile.
+     *
+     * @param file the name of the file to write the model to;
+     * @param format the encoding of the count matrices, ModelFile.DENSE or ModelFile.SPARSE;
+     * @throws IOException
+     */
+    public void write (File file, String format) throws IOException {
+        ModelFile.Writer out = new ModelFile.Writer(file, "LLDA", format);
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    private void write (ModelFile.Writer out) throws IOException {
+        out.writeInts("topicCounts", topicCounts);
+        out.writeMatrix("wordTopicCounts", wordTopicCounts);
+        out.writeDouble("alpha", alpha);
+        out.writeDouble("beta", beta);
+        out.writeDouble("betaSum", betaSum);
+        out.writeInt("numTopics", numTopics);
+        out.writeInt("numWords", numWords);
+        out.writeObject("random", random);
+        out.writeIndex("topicIndex", topicIndex);
+        out.writeIndex("wordIndex", wordIndex);
+        out.writeBoolean("trained", trained);
     }
 
     private void writeObject (ObjectOutputStream outputStream) throws IOException {
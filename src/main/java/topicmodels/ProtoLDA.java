@@ -4,6 +4,7 @@ import util.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 
 public class ProtoLDA {
@@ -21,7 +22,11 @@ public class ProtoLDA {
     protected double beta;
     protected double gamma;
     protected double betaSum;
-    protected double[][] protoBeta;
+    // the prior of a proto-topic is beta for every word plus gamma for its prototypical
+    // words, so it is stored sparsely: for each word, the proto-topics that boost it, in
+    // ascending order, and the amount they add to beta.
+    protected int[][] boostedTopics;
+    protected double[][] boosts;
 
     protected int[] topicCounts;
     protected int[][] wordTopicCounts;
@@ -32,6 +37,14 @@ public class ProtoLDA {
     protected Randoms random;
     protected Boolean trained;
 
+    // the number of threads to use for training
+    public int numThreads = 1;
+
+    // report the log-likelihood during training and decide when to stop early (null means never)
+    public Convergence convergence;
+    // cached lgamma tables for the log-likelihood
+    private transient LogLikelihood.Table alphaTable, betaTable;
+
     public ProtoLDA(int numTopics, double alpha, double beta, double gamma,
                     Corpus corpus, HashMap<String, ArrayList<String>> protoTopics) {
         regularTopics = numTopics;
@@ -59,23 +72,12 @@ public class ProtoLDA {
                 protoWords.add(word);
             }
         }
-        // we only need a asymmetric beta prior for our proto-topics.
-        protoBeta = new double[protoTopics.size()][wordIndex.size()];
-        int topic = 0;
-        // now for each topic and its prototypical words
-        for (ArrayList<String> words : protoTopics.values()) {
-            // first, fill the array with the default beta value.
-            Arrays.fill(protoBeta[topic], beta);
-            for (String word : words) {
-                // add the gamma prior to the beta prior.
-                protoBeta[topic][wordIndex.getId(word)] += gamma;
-            }
-            topic++;
-        }
-
         totalTopics = topicIndex.size();
         numProtoTopics = protoTopics.size();
         numWords = wordIndex.size();
+
+        // we only need a asymmetric beta prior for our proto-topics.
+        boostPrior(protoTopics.values());
         // define the new betaSum by incorporating the prototypical words and their gamma value.
         betaSum = corpus.getNumTypes() * beta + gamma * protoWords.size();
         random = new Randoms(20);
@@ -85,6 +87,95 @@ public class ProtoLDA {
         wordTopicCounts = new int[numWords][totalTopics];
     }
 
+    /**
+     * A worker copy for trainParallel, which shares the sparse proto-topic prior.
+     *
+     * @param model the model to copy;
+     * @param seed the random seed of the worker;
+     */
+    private ProtoLDA (ProtoLDA model, long seed) {
+        regularTopics = model.regularTopics;
+        numProtoTopics = model.numProtoTopics;
+        totalTopics = model.totalTopics;
+        numWords = model.numWords;
+
+        alpha = model.alpha;
+        beta = model.beta;
+        gamma = model.gamma;
+        betaSum = model.betaSum;
+        boostedTopics = model.boostedTopics;
+        boosts = model.boosts;
+
+        topicCounts = new int[totalTopics];
+        wordTopicCounts = new int[numWords][totalTopics];
+
+        topicIndex = model.topicIndex;
+        wordIndex = model.wordIndex;
+
+        random = new Randoms(seed);
+    }
+
+    /**
+     * Build the sparse prior of the proto-topics: for each prototypical word of a
+     * proto-topic, add gamma to the beta prior of the word in that topic.
+     *
+     * @param protoTopics the prototypical words of each proto-topic, in the order of the proto-topics;
+     */
+    private void boostPrior (Collection<ArrayList<String>> protoTopics) {
+        int[] numBoosts = new int[numWords];
+        int[] lastTopic = new int[numWords];
+        Arrays.fill(lastTopic, -1);
+        int topic = 0;
+        for (ArrayList<String> words : protoTopics) {
+            for (String word : words) {
+                int id = wordIndex.getId(word);
+                if (lastTopic[id] != topic) {
+                    lastTopic[id] = topic;
+                    numBoosts[id]++;
+                }
+            }
+            topic++;
+        }
+        int[] noTopics = new int[0];
+        double[] noBoosts = new double[0];
+        boostedTopics = new int[numWords][];
+        boosts = new double[numWords][];
+        for (int word = 0; word < numWords; word++) {
+            boostedTopics[word] = numBoosts[word] == 0 ? noTopics : new int[numBoosts[word]];
+            boosts[word] = numBoosts[word] == 0 ? noBoosts : new double[numBoosts[word]];
+            numBoosts[word] = 0;
+        }
+        topic = 0;
+        for (ArrayList<String> words : protoTopics) {
+            for (String word : words) {
+                int id = wordIndex.getId(word);
+                int last = numBoosts[id] - 1;
+                if (last < 0 || boostedTopics[id][last] != topic) {
+                    last = numBoosts[id]++;
+                    boostedTopics[id][last] = topic;
+                }
+                // a word listed twice is boosted twice.
+                boosts[id][last] += gamma;
+            }
+            topic++;
+        }
+    }
+
+    /**
+     * @param topic the proto-topic, counted from zero;
+     * @param word the word;
+     * @return the prior of the word in the proto-topic;
+     */
+    private double protoPrior (int topic, int word) {
+        int[] topics = boostedTopics[word];
+        for (int i = 0; i < topics.length; i++) {
+            if (topics[i] == topic) {
+                return beta + boosts[word][i];
+            }
+        }
+        return beta;
+    }
+
     /**
      * Given a corpus, learn the topic distribution per document and the
      * word distribution per topic.
@@ -92,22 +183,125 @@ public class ProtoLDA {
      * @param iterations the number of iterations to run the sampler;
      * @param corpus the corpus to run the sampler on;
      */
-    public void train (int iterations, Corpus corpus) {
+    public void train (int iterations, final Corpus corpus) {
+        corpus.allocateTopicAssignments();
         learnSampler = new LearnSampler();
         for (Document document : corpus) {
             learnSampler.addDocument(document);
         }
         logger.info("Sampler initialized. " + regularTopics+ " regular topics, " +
                     (totalTopics - regularTopics) + "proto-topics and " + corpus.size() + " documents.");
-        for (int iteration = 1; iteration <= iterations; iteration++) {
-            logger.info("Sampling iteration " + iteration + " started.");
-            for (Document document : corpus) {
-                learnSampler.sampleForOneDocument(document);
+        if (numThreads > 1) {
+            trainParallel(iterations, corpus);
+        } else {
+            Convergence.Likelihood likelihood = new Convergence.Likelihood() {
+                public double compute () {
+                    return logLikelihood(corpus, null);
+                }
+            };
+            for (int iteration = 1; iteration <= iterations; iteration++) {
+                logger.info("Sampling iteration " + iteration + " started.");
+                for (Document document : corpus) {
+                    learnSampler.sampleForOneDocument(document);
+                }
+                if (convergence != null && convergence.isDueAndConverged(iteration, likelihood, corpus.getNumTokens())) {
+                    break;
+                }
             }
         }
         trained = true;
     }
 
+    /**
+     * Run the sampler on numThreads threads with Parallel.train, each thread
+     * sampling against the counts of its own worker copy of the model.
+     *
+     * @param iterations the number of iterations to run the sampler;
+     * @param corpus the corpus to run the sampler on;
+     */
+    private void trainParallel (int iterations, final Corpus corpus) {
+        List<Parallel.Worker> workers = new ArrayList<Parallel.Worker>(numThreads);
+        for (int thread = 0; thread < numThreads; thread++) {
+            final ProtoLDA worker = new ProtoLDA(this, random.nextLong());
+            final LearnSampler workerSampler = worker.new LearnSampler();
+            workers.add(new Parallel.Worker() {
+                public int[][][] matrices () { return new int[][][] {worker.wordTopicCounts}; }
+                public int[][] vectors () { return new int[][] {worker.topicCounts}; }
+                public void sample (List<Document> documents) {
+                    for (Document document : documents) {
+                        workerSampler.sampleForOneDocument(document);
+                    }
+                }
+            });
+        }
+        Parallel.train(corpus, 1, iterations, new int[][][] {wordTopicCounts}, new int[][] {topicCounts},
+                workers, new Parallel.IterationListener() {
+                    public boolean finished (int iteration, final ExecutorService pool) {
+                        return convergence != null && convergence.isDueAndConverged(iteration, new Convergence.Likelihood() {
+                            public double compute () {
+                                return logLikelihood(corpus, pool);
+                            }
+                        }, corpus.getNumTokens());
+                    }
+                });
+    }
+
+    /**
+     * Compute the joint log-likelihood log p(w, z) of the words of a corpus and their
+     * topic assignments, with the topic and word distributions integrated out. The
+     * word distributions of the proto-topics have the asymmetric prior given by
+     * beta and the boosts of their prototypical words.
+     *
+     * @param corpus the corpus the model is trained on;
+     * @return the log-likelihood;
+     */
+    public double logLikelihood (Corpus corpus) {
+        return logLikelihood(corpus, null);
+    }
+
+    private double logLikelihood (Corpus corpus, ExecutorService pool) {
+        alphaTable = LogLikelihood.table(alphaTable, alpha);
+        betaTable = LogLikelihood.table(betaTable, beta);
+        int[] docTopicCounts = new int[totalTopics];
+        double value = 0.0;
+        for (Document document : corpus) {
+            Arrays.fill(docTopicCounts, 0);
+            for (int position = 0; position < document.size(); position++) {
+                docTopicCounts[document.getTopic(position)]++;
+            }
+            alphaTable.ensureSize(document.size());
+            value += LogLikelihood.symmetric(docTopicCounts, document.size(), totalTopics, alpha, alphaTable);
+        }
+        value += LogLikelihood.topicWords(wordTopicCounts, topicCounts, 0, regularTopics, beta, betaTable, pool, numThreads);
+        double[] protoBetaSums = new double[numProtoTopics];
+        Arrays.fill(protoBetaSums, numWords * beta);
+        for (int word = 0; word < numWords; word++) {
+            for (int i = 0; i < boostedTopics[word].length; i++) {
+                protoBetaSums[boostedTopics[word][i]] += boosts[word][i];
+            }
+        }
+        for (int topic = 0; topic < numProtoTopics; topic++) {
+            value += LogLikelihood.lgamma(protoBetaSums[topic]) - LogLikelihood.lgamma(protoBetaSums[topic] + topicCounts[regularTopics + topic]);
+        }
+        return value + LogLikelihood.sum(numWords, pool, numThreads, new LogLikelihood.Term() {
+            public double value (int word) {
+                int[] topics = boostedTopics[word];
+                double value = 0.0;
+                for (int topic = 0, next = 0; topic < numProtoTopics; topic++) {
+                    double prior = beta;
+                    if (next < topics.length && topics[next] == topic) {
+                        prior += boosts[word][next++];
+                    }
+                    int count = wordTopicCounts[word][regularTopics + topic];
+                    if (count > 0) {
+                        value += LogLikelihood.lgamma(prior + count) - LogLikelihood.lgamma(prior);
+                    }
+                }
+                return value;
+            }
+        });
+    }
+
     /**
      * Write the either learned or inferred topic distributions to a file.
      *
@@ -122,16 +316,9 @@ public class ProtoLDA {
         for (Document document : corpus) {
             printer.print(document.getSource() + "\t");
             IDSorter[] sortedTopics = new IDSorter[totalTopics];
-            int[] topicCounts = new int[totalTopics];
-            int docLen = 0;
-            for (int position = 0; position < document.size(); position++) {
-                int word = document.getToken(position);
-                if (word >= numWords) { continue; }
-                docLen++;
-                topicCounts[document.getTopic(position)]++;
-            }
+            double[] proportions = topicProportions(document, smooth);
             for (int topic = 0; topic < totalTopics; topic++) {
-                sortedTopics[topic] = new IDSorter(topic, (smooth + topicCounts[topic]) / (docLen));
+                sortedTopics[topic] = new IDSorter(topic, proportions[topic]);
             }
             Arrays.sort(sortedTopics);
             for (int index = 0; index < totalTopics; index++) {
@@ -144,67 +331,198 @@ public class ProtoLDA {
         printer.close();
     }
 
-    public void printTopicDistribution (File file) throws IOException {
-        PrintStream output = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)));
-        output.print(getTopicDistribution());
-        output.close();
+    /**
+     * Compute the topic proportions of a document from its topic assignments,
+     * ignoring words that are unknown to the model.
+     *
+     * @param document the document;
+     * @param smooth parameter to use for smoothing the topic distribution;
+     * @return the proportion of each topic;
+     */
+    private double[] topicProportions (Document document, double smooth) {
+        int[] topicCounts = new int[totalTopics];
+        int docLen = 0;
+        for (int position = 0; position < document.size(); position++) {
+            int word = document.getToken(position);
+            if (word >= numWords) { continue; }
+            docLen++;
+            topicCounts[document.getTopic(position)]++;
+        }
+        double[] proportions = new double[totalTopics];
+        for (int topic = 0; topic < totalTopics; topic++) {
+            proportions[topic] = (smooth + topicCounts[topic]) / (docLen);
+        }
+        return proportions;
     }
 
-    private String getTopicDistribution () {
-        StringBuilder output = new StringBuilder();
-        IDSorter[] sortedWords = new IDSorter[numWords];
+    /**
+     * Export the topic distributions of the documents (theta) and the word
+     * distributions of the topics (phi) as float32 matrices, see MatrixExport.
+     * Theta holds the proportions written by writeTopicDistributions.
+     *
+     * @param directory the directory to write the matrices to;
+     * @param corpus the corpus containing the topic assignments;
+     * @param smooth parameter to use for smoothing the topic distributions;
+     * @throws IOException
+     */
+    public void exportMatrices (File directory, Corpus corpus, double smooth) throws IOException {
+        MatrixExport.writeSources(new File(directory, "documents.tsv"), corpus);
+        MatrixExport.writeLabels(new File(directory, "topics.tsv"), topicIndex, totalTopics);
+        MatrixExport.writeLabels(new File(directory, "words.tsv"), wordIndex, numWords);
+        MatrixExport.Writer theta = new MatrixExport.Writer(directory, "theta", corpus.size(), totalTopics, "documents.tsv", "topics.tsv");
+        for (Document document : corpus) {
+            theta.writeRow(topicProportions(document, smooth));
+        }
+        theta.close();
+        MatrixExport.Writer phi = new MatrixExport.Writer(directory, "phi", totalTopics, numWords, "topics.tsv", "words.tsv");
+        double[] row = new double[numWords];
         for (int topic = 0; topic < totalTopics; topic++) {
             for (int word = 0; word < numWords; word++) {
-                sortedWords[word] = new IDSorter(word, (double) wordTopicCounts[word][topic]);
+                row[word] = phi(word, topic);
             }
-            Arrays.sort(sortedWords);
+            phi.writeRow(row);
+        }
+        phi.close();
+    }
+
+    public void printTopicDistribution (File file) throws IOException {
+        printTopicDistribution(file, 0);
+    }
+
+    /**
+     * Write the words of each topic, ordered by their count in the topic.
+     *
+     * @param file the file to write to;
+     * @param topWords the number of words to write per topic, 0 means all;
+     * @throws IOException
+     */
+    public void printTopicDistribution (File file, int topWords) throws IOException {
+        Writer output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file)), 1 << 16);
+        try {
+            List<TopicFormatter> formatters = new ArrayList<TopicFormatter>();
+            for (int thread = 0; thread < Math.max(numThreads, 1); thread++) {
+                formatters.add(new TopicFormatter(topWords));
+            }
+            Parallel.writeBlocks(output, totalTopics, formatters);
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Formats the words of a topic, ordered by their count in the topic.
+     */
+    private class TopicFormatter implements Parallel.BlockFormatter {
+
+        private final TopK sortedWords;
+
+        TopicFormatter (int topWords) {
+            sortedWords = new TopK(topWords > 0 ? Math.min(topWords, numWords) : numWords);
+        }
+
+        public void format (int topic, TextBuffer output) {
+            sortedWords.clear();
+            for (int word = 0; word < numWords; word++) {
+                sortedWords.add(word, wordTopicCounts[word][topic]);
+            }
+            sortedWords.sort();
             output.append(topicIndex.getItem(topic))
-                    .append(" ")
-                    .append("count: ")
+                    .append(" count: ")
                     .append(topicCounts[topic])
-                    .append(" ");
-            for (int word = 0; word < numWords; word++) {
-                output.append(wordIndex.getItem(sortedWords[word].getIndex()))
-                        .append(":")
-                        .append(sortedWords[word].getValue())
-                        .append(" ");
+                    .append(' ');
+            for (int rank = 0; rank < sortedWords.size(); rank++) {
+                output.append(wordIndex.getItem(sortedWords.index(rank)))
+                        .append(':')
+                        .append(sortedWords.value(rank))
+                        .append(' ');
             }
-            output.append("\n");
+            output.append('\n');
         }
-        return output.toString();
     }
 
     public void printPhi(File file) throws IOException {
-        PrintStream output = new PrintStream(new BufferedOutputStream(new FileOutputStream(file)));
-        output.print(printPhi());
-        output.close();
+        printPhi(file, 0);
+    }
+
+    /**
+     * Write the word probabilities of each topic, highest first.
+     *
+     * @param file the file to write to;
+     * @param topWords the number of words to write per topic, 0 means all;
+     * @throws IOException
+     */
+    public void printPhi(File file, int topWords) throws IOException {
+        Writer output = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file)), 1 << 16);
+        try {
+            writePhi(output, topWords);
+        } finally {
+            output.close();
+        }
     }
 
     public String printPhi () {
-        StringBuilder output = new StringBuilder();
-        IDSorter[] sortedWords = new IDSorter[numWords];
-        for (int topic = 0; topic < totalTopics; topic++) {
-            if (topic < regularTopics) {
-                for (int word = 0; word < numWords; word++) {
-                    sortedWords[word] = new IDSorter(word, (beta + wordTopicCounts[word][topic]) / (betaSum + topicCounts[topic]));
-                }
-            } else {
-                System.out.println(topic-regularTopics + " " + protoBeta.length);
-                for (int word = 0; word < numWords; word++) {
-                    sortedWords[word] = new IDSorter(word, protoBeta[topic-regularTopics][word] / (betaSum + topicCounts[topic]));
-                }
-            }
-            Arrays.sort(sortedWords);
-            output.append(topicIndex.getItem(topic)).append(" ");
+        return printPhi(0);
+    }
+
+    public String printPhi (int topWords) {
+        StringWriter output = new StringWriter();
+        try {
+            writePhi(output, topWords);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return output.toString();
+    }
+
+    private void writePhi (Writer output, int topWords) throws IOException {
+        List<PhiFormatter> formatters = new ArrayList<PhiFormatter>();
+        for (int thread = 0; thread < Math.max(numThreads, 1); thread++) {
+            formatters.add(new PhiFormatter(topWords));
+        }
+        Parallel.writeBlocks(output, totalTopics, formatters);
+    }
+
+    /**
+     * Return the probability of a word in a topic. The word distributions of the
+     * proto-topics are given by their prior.
+     *
+     * @param word the word;
+     * @param topic the topic;
+     * @return the probability of the word in the topic;
+     */
+    private double phi (int word, int topic) {
+        if (topic < regularTopics) {
+            return (beta + wordTopicCounts[word][topic]) / (betaSum + topicCounts[topic]);
+        }
+        return protoPrior(topic-regularTopics, word) / (betaSum + topicCounts[topic]);
+    }
+
+    /**
+     * Formats the word probabilities of a topic, highest first.
+     */
+    private class PhiFormatter implements Parallel.BlockFormatter {
+
+        private final TopK sortedWords;
+
+        PhiFormatter (int topWords) {
+            sortedWords = new TopK(topWords > 0 ? Math.min(topWords, numWords) : numWords);
+        }
+
+        public void format (int topic, TextBuffer output) {
+            sortedWords.clear();
             for (int word = 0; word < numWords; word++) {
-                output.append(wordIndex.getItem(sortedWords[word].getIndex()))
-                        .append(":")
-                        .append(sortedWords[word].getValue())
-                        .append(" ");
+                sortedWords.add(word, phi(word, topic));
             }
-            output.append("\n");
+            sortedWords.sort();
+            output.append(topicIndex.getItem(topic)).append(' ');
+            for (int rank = 0; rank < sortedWords.size(); rank++) {
+                output.append(wordIndex.getItem(sortedWords.index(rank)))
+                        .append(':')
+                        .append(sortedWords.value(rank))
+                        .append(' ');
+            }
+            output.append('\n');
         }
-        return output.toString();
     }
 
     /**
@@ -212,29 +530,44 @@ public class ProtoLDA {
      */
     public class Sampler {
 
+        // scratch space reused between tokens and documents
+        protected final int[] docTopicCounts = new int[totalTopics];
+        protected final double[] topicScores = new double[totalTopics];
+
+        // the sum of protoWeight over all proto-topics for the current document, kept up
+        // to date as the counts of the document change
+        private double protoWeights;
+
         /**
          * Sample the topics for all tokens of a document.
          *
          * @param document an instance of Document for which we sample the topics;
          */
         public void sampleForOneDocument (Document document) {
-            int[] docTopicCounts = new int[totalTopics];
-            for (Integer topic : document.getTopicAssignments()) {
-                docTopicCounts[topic]++;
+            for (int position = 0; position < document.size(); position++) {
+                docTopicCounts[document.getTopic(position)]++;
             }
+            protoWeights = protoWeights(docTopicCounts);
             for (int position = 0; position < document.size(); position++) {
                 int word = document.getToken(position);
                 if (word >= numWords) {
                     continue;
                 }
                 int topic = document.getTopic(position);
+                updateProtoWeights(topic, -1.0);
                 decrement(topic, word);
                 docTopicCounts[topic]--;
-                topic = sample(word, docTopicCounts);
+                updateProtoWeights(topic, 1.0);
+                topic = sample(word, docTopicCounts, protoWeights);
+                updateProtoWeights(topic, -1.0);
                 increment(topic, word);
                 docTopicCounts[topic]++;
+                updateProtoWeights(topic, 1.0);
                 document.setTopic(position, topic);
             }
+            for (int position = 0; position < document.size(); position++) {
+                docTopicCounts[document.getTopic(position)] = 0;
+            }
         }
 
         public void increment (int topic, int word) {}
@@ -255,40 +588,103 @@ public class ProtoLDA {
         }
 
         /**
-         * Sample a topic for the current word. This method in particular is computationally
-         * expensive and could probably be optimized (further).
+         * Sample a topic for the current word.
          *
          * @param word the word for which we sample a topic;
          * @param docTopicCounts for each topic, how often does it occur in the document under investigation?
          * @return the newly sampled topic.
          */
         public int sample(int word, int[] docTopicCounts) {
-            double[] termTopicScores = new double[totalTopics];
+            return sample(word, docTopicCounts, protoWeights(docTopicCounts));
+        }
+
+        /**
+         * Sample a topic for the current word. The score of a proto-topic is its prior for
+         * the word times its protoWeight, which splits into beta times the weight, shared by
+         * all proto-topics and summed in protoWeights, and the boost of the word times the
+         * weight, which only the proto-topics that boost the word have. So only those are
+         * visited, unless the sample falls in the shared mass.
+         *
+         * @param word the word for which we sample a topic;
+         * @param docTopicCounts for each topic, how often does it occur in the document under investigation?
+         * @param protoWeights the sum of protoWeight over all proto-topics;
+         * @return the newly sampled topic.
+         */
+        private int sample (int word, int[] docTopicCounts, double protoWeights) {
             double sum = 0.0;
             for (int topic = 0; topic < regularTopics; topic++) {
                 double score = (alpha + docTopicCounts[topic]) *
                         (beta + wordTopicCounts[word][topic]) / (betaSum + topicCounts[topic]);
                 sum += score;
-                termTopicScores[topic] = score;
+                topicScores[topic] = score;
             }
-            for (int topic = 0; topic < numProtoTopics; topic++) {
-                int realTopic = regularTopics + topic;
-                double score = (alpha + docTopicCounts[realTopic]) *
-                        (protoBeta[topic][word] / (betaSum + topicCounts[realTopic]));
-                sum += score;
-                termTopicScores[realTopic] = score;
+            int[] topics = boostedTopics[word];
+            double[] wordBoosts = boosts[word];
+            double boostSum = 0.0;
+            for (int i = 0; i < topics.length; i++) {
+                double score = wordBoosts[i] * protoWeight(regularTopics + topics[i], docTopicCounts);
+                boostSum += score;
+                topicScores[regularTopics + i] = score;
             }
-            double sample = random.nextUniform() * sum;
-            int topic = -1;
-            while (sample > 0.0) {
-                topic++;
-                sample -= termTopicScores[topic];
+            double smoothing = beta * protoWeights;
+            double sample = random.nextUniform() * (sum + boostSum + smoothing);
+            if (sample < sum) {
+                int topic = -1;
+                while (sample > 0.0 && topic < regularTopics - 1) {
+                    topic++;
+                    sample -= topicScores[topic];
+                }
+                return Math.max(topic, 0);
             }
-            if (topic == -1) {
+            sample -= sum;
+            if (sample < boostSum) {
+                int index = 0;
+                sample -= topicScores[regularTopics];
+                while (sample > 0.0 && index < topics.length - 1) {
+                    index++;
+                    sample -= topicScores[regularTopics + index];
+                }
+                return regularTopics + topics[index];
+            }
+            sample -= boostSum;
+            if (numProtoTopics == 0) {
                 throw new IllegalStateException("No topic sampled!");
             }
+            // the last proto-topic also takes what rounding leaves of the sample
+            int topic = regularTopics;
+            sample -= beta * protoWeight(topic, docTopicCounts);
+            while (sample > 0.0 && topic < totalTopics - 1) {
+                topic++;
+                sample -= beta * protoWeight(topic, docTopicCounts);
+            }
             return topic;
         }
+
+        /**
+         * @param topic the topic, which must be a proto-topic;
+         * @param docTopicCounts the topic counts of the document;
+         * @return (alpha + n_dt) / (betaSum + n_t), the score of the topic divided by its prior for the word;
+         */
+        private double protoWeight (int topic, int[] docTopicCounts) {
+            return (alpha + docTopicCounts[topic]) / (betaSum + topicCounts[topic]);
+        }
+
+        private double protoWeights (int[] docTopicCounts) {
+            double weights = 0.0;
+            for (int topic = regularTopics; topic < totalTopics; topic++) {
+                weights += protoWeight(topic, docTopicCounts);
+            }
+            return weights;
+        }
+
+        /**
+         * Add or remove the protoWeight of a topic to protoWeights, if it is a proto-topic.
+         */
+        private void updateProtoWeights (int topic, double sign) {
+            if (topic >= regularTopics) {
+                protoWeights += sign * protoWeight(topic, docTopicCounts);
+            }
+        }
     }
 
     /**
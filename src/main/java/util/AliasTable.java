@@ -0,0 +1,132 @@
+package util;
+
+/**
+ * Alias table (Walker, 1977; Vose, 1991) for drawing from a fixed discrete
+ * distribution in constant time. The table remembers the unnormalized weight
+ * of each outcome, so that Metropolis-Hastings samplers can evaluate the
+ * (possibly stale) proposal probability of an outcome afterwards. Outcomes
+ * must be given in ascending order for weight lookups to work.
+ */
+public class AliasTable {
+
+    private int[] outcomes;
+    private double[] weights;
+    private double[] probabilities;
+    private int[] aliases;
+    private int size;
+    private double mass;
+
+    // scratch space used while building the table
+    private int[] small;
+    private int[] large;
+
+    public AliasTable () {
+        this(4);
+    }
+
+    public AliasTable (int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    private void allocate (int capacity) {
+        outcomes = new int[capacity];
+        weights = new double[capacity];
+        probabilities = new double[capacity];
+        aliases = new int[capacity];
+        small = new int[capacity];
+        large = new int[capacity];
+    }
+
+    /**
+     * (Re)build the table for a new distribution.
+     *
+     * @param outcomes the outcomes in ascending order;
+     * @param weights the unnormalized weight of each outcome;
+     * @param size the number of outcomes to use from both arrays;
+     */
+    public void build (int[] outcomes, double[] weights, int size) {
+        if (size > this.outcomes.length) {
+            allocate(size);
+        }
+        this.size = size;
+        mass = 0.0;
+        for (int i = 0; i < size; i++) {
+            this.outcomes[i] = outcomes[i];
+            this.weights[i] = weights[i];
+            mass += weights[i];
+        }
+        int numSmall = 0, numLarge = 0;
+        for (int i = 0; i < size; i++) {
+            probabilities[i] = mass > 0.0 ? weights[i] * size / mass : 1.0;
+            aliases[i] = i;
+            if (probabilities[i] < 1.0) {
+                small[numSmall++] = i;
+            } else {
+                large[numLarge++] = i;
+            }
+        }
+        while (numSmall > 0 && numLarge > 0) {
+            int less = small[--numSmall];
+            int more = large[--numLarge];
+            aliases[less] = more;
+            probabilities[more] = (probabilities[more] + probabilities[less]) - 1.0;
+            if (probabilities[more] < 1.0) {
+                small[numSmall++] = more;
+            } else {
+                large[numLarge++] = more;
+            }
+        }
+        // whatever is left should have probability one, up to rounding errors
+        while (numLarge > 0) {
+            probabilities[large[--numLarge]] = 1.0;
+        }
+        while (numSmall > 0) {
+            probabilities[small[--numSmall]] = 1.0;
+        }
+    }
+
+    /**
+     * Draw an outcome from the table.
+     *
+     * @param random the random number generator to use;
+     * @return the sampled outcome;
+     */
+    public int sample (Randoms random) {
+        double u = random.nextUniform() * size;
+        int bin = (int) u;
+        if (bin == size) { bin--; }
+        return u - bin < probabilities[bin] ? outcomes[bin] : outcomes[aliases[bin]];
+    }
+
+    /**
+     * Return the weight the table was built with for an outcome, or 0.0
+     * if the outcome was not part of the table.
+     *
+     * @param outcome the outcome to look up;
+     * @return the unnormalized weight of the outcome;
+     */
+    public double weight (int outcome) {
+        int low = 0, high = size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (outcomes[middle] < outcome) {
+                low = middle + 1;
+            } else if (outcomes[middle] > outcome) {
+                high = middle - 1;
+            } else {
+                return weights[middle];
+            }
+        }
+        return 0.0;
+    }
+
+    /**
+     * @return the sum of all weights in the table;
+     */
+    public double mass () { return mass; }
+
+    /**
+     * @return the number of outcomes in the table;
+     */
+    public int size () { return size; }
+}
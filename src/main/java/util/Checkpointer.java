@@ -0,0 +1,125 @@
+package util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Writes checkpoints of a training run in the background. The state of the sampler
+ * is copied into one of two preallocated snapshots, which is then written to disk by
+ * a separate thread while sampling continues. The sampler only has to wait if both
+ * snapshots are still being written. A checkpoint is written to a temporary file
+ * first and then renamed, so the checkpoint file on disk is always complete.
+ */
+public class Checkpointer<S extends Checkpointer.Snapshot> {
+
+    public static Logger logger = Logger.getLogger(Checkpointer.class.getName());
+
+    /**
+     * A copy of the state of a sampler that can be written as a model file.
+     */
+    public interface Snapshot {
+
+        /**
+         * Write the snapshot as the sections of a model file.
+         *
+         * @param out the model file to write to;
+         * @throws IOException
+         */
+        void write (ModelFile.Writer out) throws IOException;
+    }
+
+    private final File file;
+    private final String model;
+    private final int interval;
+    private final BlockingQueue<S> free = new ArrayBlockingQueue<S>(2);
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+
+    /**
+     * @param file the file to write the checkpoints to;
+     * @param model the kind of model, e.g. LDA;
+     * @param interval the number of iterations between checkpoints;
+     * @param first the first snapshot buffer;
+     * @param second the second snapshot buffer;
+     */
+    public Checkpointer (File file, String model, int interval, S first, S second) {
+        this.file = file;
+        this.model = model;
+        this.interval = interval;
+        free.add(first);
+        free.add(second);
+    }
+
+    /**
+     * @param iteration the iteration that has just finished;
+     * @return true if a checkpoint should be written after this iteration;
+     */
+    public boolean isDue (int iteration) {
+        return interval > 0 && iteration % interval == 0;
+    }
+
+    /**
+     * Take a snapshot buffer that is not being written, waiting for the
+     * writer if necessary.
+     *
+     * @return the snapshot to copy the state into;
+     */
+    public S acquire () {
+        try {
+            return free.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the checkpoint writer.", e);
+        }
+    }
+
+    /**
+     * Write a snapshot in the background. The snapshot is handed back to the
+     * pool of free buffers when it has been written.
+     *
+     * @param snapshot the snapshot to write;
+     */
+    public void submit (final S snapshot) {
+        writer.execute(new Runnable() {
+            public void run () {
+                try {
+                    File temporary = new File(file.getPath() + ".tmp");
+                    ModelFile.Writer out = new ModelFile.Writer(temporary, model);
+                    try {
+                        snapshot.write(out);
+                    } finally {
+                        out.close();
+                    }
+                    if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+                        throw new IOException("Could not move " + temporary + " to " + file + ".");
+                    }
+                    logger.info("Checkpoint written to " + file + ".");
+                } catch (IOException e) {
+                    logger.warning("Writing checkpoint " + file + " failed: " + e.getMessage());
+                } finally {
+                    free.add(snapshot);
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for the pending checkpoints to be written and stop the writer.
+     */
+    public void close () {
+        writer.shutdown();
+        try {
+            while (!writer.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.info("Waiting for the checkpoint writer to finish.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the checkpoint writer.", e);
+        }
+    }
+}
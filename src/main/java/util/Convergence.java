@@ -0,0 +1,94 @@
+package util;
+
+import java.util.logging.Logger;
+
+/**
+ * Tracks the log-likelihood of a training run and decides when to stop it. Every
+ * interval iterations the sampler reports the joint log-likelihood of the model,
+ * which is logged with the per-token perplexity. Training stops once the relative
+ * improvement of the log-likelihood between two reports has stayed below the
+ * threshold for patience reports in a row.
+ */
+public class Convergence {
+
+    public static Logger logger = Logger.getLogger(Convergence.class.getName());
+
+    private final int interval;
+    private final double threshold;
+    private final int patience;
+
+    private double previous = Double.NaN;
+    private int slowReports = 0;
+
+    /**
+     * Computes the joint log-likelihood of a model when a report is due.
+     */
+    public interface Likelihood {
+
+        /**
+         * @return the joint log-likelihood of the model;
+         */
+        double compute ();
+    }
+
+    /**
+     * @param interval the number of iterations between two computations of the log-likelihood;
+     * @param threshold the relative improvement below which the sampler counts as converged,
+     *                  0 means never stop early;
+     * @param patience the number of reports in a row with less improvement than threshold
+     *                 after which to stop;
+     */
+    public Convergence (int interval, double threshold, int patience) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("The log-likelihood interval must be positive: " + interval);
+        }
+        this.interval = interval;
+        this.threshold = threshold;
+        this.patience = Math.max(patience, 1);
+    }
+
+    /**
+     * @param iteration the iteration that has just finished;
+     * @return true if the log-likelihood should be reported after this iteration;
+     */
+    public boolean isDue (int iteration) {
+        return iteration % interval == 0;
+    }
+
+    /**
+     * Report the log-likelihood if a report is due after this iteration. The
+     * log-likelihood is only computed when it is reported.
+     *
+     * @param iteration the iteration that has just finished;
+     * @param likelihood computes the joint log-likelihood of the model;
+     * @param numTokens the number of tokens in the corpus;
+     * @return true if training should stop;
+     */
+    public boolean isDueAndConverged (int iteration, Likelihood likelihood, long numTokens) {
+        return isDue(iteration) && update(iteration, likelihood.compute(), numTokens);
+    }
+
+    /**
+     * Report the log-likelihood after an iteration.
+     *
+     * @param iteration the iteration that has just finished;
+     * @param logLikelihood the joint log-likelihood of the model;
+     * @param numTokens the number of tokens in the corpus;
+     * @return true if training should stop;
+     */
+    public boolean update (int iteration, double logLikelihood, long numTokens) {
+        logger.info("Iteration " + iteration + ": log-likelihood " + logLikelihood
+                + ", perplexity " + Math.exp(-logLikelihood / Math.max(numTokens, 1)) + ".");
+        if (!Double.isNaN(previous)) {
+            double improvement = (logLikelihood - previous) / Math.abs(previous);
+            slowReports = improvement < threshold ? slowReports + 1 : 0;
+        }
+        previous = logLikelihood;
+        if (threshold > 0 && slowReports >= patience) {
+            logger.info("Converged after iteration " + iteration + ": the log-likelihood improved by less than "
+                    + threshold + " for " + patience + " reports in a row.");
+            return true;
+        }
+        return false;
+    }
+}
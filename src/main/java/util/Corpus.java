@@ -5,6 +5,7 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -12,6 +13,12 @@ import java.util.Iterator;
  * an iterable container of Documents. Besides the individual documents
  * a corpus consists of the vocabulary index, and, if applicable, the
  * label and type index.
+ *
+ * The tokens and the topic and type assignments of all documents are stored
+ * in flat primitive arrays, each document owning a contiguous slice of them.
+ * This avoids boxing every token and keeps the tokens of consecutive documents
+ * next to each other in memory, which matters for the samplers that sweep
+ * over the corpus in order.
  */
 public class Corpus implements Iterable<Document> {
     private final Index wordIndex;
@@ -19,6 +26,14 @@ public class Corpus implements Iterable<Document> {
     private final Index typeIndex;
     private final ArrayList<Document> documents;
 
+    // columnar storage of all documents; only the first numTokens entries are used
+    private int[] tokens;
+    // the assignment arrays are only allocated by the models that use them;
+    // type assignments, for instance, are only needed by TDTM and ATM
+    private int[] topicAssignments;
+    private int[] typeAssignments;
+    private int numTokens;
+
     public Corpus () {
         this (new Index());
     }
@@ -36,6 +51,7 @@ public class Corpus implements Iterable<Document> {
         this.labelIndex = labelIndex;
         this.typeIndex = typeIndex;
         this.documents = new ArrayList<Document>();
+        this.tokens = new int[1024];
     }
 
     public Iterator<Document> iterator () {
@@ -48,10 +64,151 @@ public class Corpus implements Iterable<Document> {
 
     public int size () { return documents.size(); }
 
+    public Document get (int index) { return documents.get(index); }
+
     public int getNumTopics () { return labelIndex.size(); }
     public int getNumTypes () { return typeIndex.size(); }
     public int getNumWords () { return wordIndex.size(); }
 
+    /**
+     * @return the total number of tokens in the corpus;
+     */
+    public int getNumTokens () { return numTokens; }
+
+    int[] tokens () { return tokens; }
+    int[] topicAssignments () { return topicAssignments; }
+    int[] typeAssignments () { return typeAssignments; }
+
+    /**
+     * Allocate the topic assignments of all tokens, unless they already are. A model
+     * calls this before it assigns topics to the documents of the corpus; until then,
+     * reading or writing the topic of a token fails.
+     */
+    public void allocateTopicAssignments () {
+        if (topicAssignments == null) {
+            topicAssignments = new int[tokens.length];
+        }
+    }
+
+    /**
+     * Allocate the type assignments of all tokens, unless they already are. A model
+     * calls this before it assigns types to the documents of the corpus; until then,
+     * reading or writing the type of a token fails.
+     */
+    public void allocateTypeAssignments () {
+        if (typeAssignments == null) {
+            typeAssignments = new int[tokens.length];
+        }
+    }
+
+    /**
+     * Copy the topic assignments of all tokens, in corpus order, into an array.
+     *
+     * @param target an array of at least getNumTokens() elements;
+     */
+    public void copyTopicAssignments (int[] target) {
+        copy(topicAssignments, target);
+    }
+
+    /**
+     * Copy the type assignments of all tokens, in corpus order, into an array.
+     *
+     * @param target an array of at least getNumTokens() elements;
+     */
+    public void copyTypeAssignments (int[] target) {
+        copy(typeAssignments, target);
+    }
+
+    private void copy (int[] assignments, int[] target) {
+        System.arraycopy(assignments, 0, target, 0, numTokens);
+    }
+
+    /**
+     * Set the topic assignments of all tokens, e.g. from a checkpoint.
+     *
+     * @param source the assignments of all tokens in corpus order;
+     */
+    public void restoreTopicAssignments (int[] source) {
+        checkNumTokens(source);
+        allocateTopicAssignments();
+        System.arraycopy(source, 0, topicAssignments, 0, numTokens);
+    }
+
+    /**
+     * Set the type assignments of all tokens, e.g. from a checkpoint.
+     *
+     * @param source the assignments of all tokens in corpus order;
+     */
+    public void restoreTypeAssignments (int[] source) {
+        checkNumTokens(source);
+        allocateTypeAssignments();
+        System.arraycopy(source, 0, typeAssignments, 0, numTokens);
+    }
+
+    private void checkNumTokens (int[] assignments) {
+        if (assignments.length != numTokens) {
+            throw new IllegalArgumentException("Expected assignments for " + numTokens
+                    + " tokens, but got " + assignments.length + ".");
+        }
+    }
+
+    /**
+     * Add a document to the corpus. The tokens are copied into the storage
+     * of the corpus.
+     *
+     * @param tokens an array holding the word ids of the document;
+     * @param offset the position of the first token of the document in the array;
+     * @param length the number of tokens of the document;
+     * @param source the id of the document;
+     * @param types the document categories;
+     * @param labels the labels attached to the document;
+     * @return the new document;
+     */
+    public Document addDocument (int[] tokens, int offset, int length, String source, ArrayList<Integer> types, ArrayList<Integer> labels) {
+        ensureCapacity(numTokens + length);
+        System.arraycopy(tokens, offset, this.tokens, numTokens, length);
+        Document document = new Document(this, numTokens, length, source, types, labels);
+        numTokens += length;
+        documents.add(document);
+        return document;
+    }
+
+    /**
+     * Make room for a total of at least capacity tokens, e.g. before adding
+     * many documents of which the size is known.
+     *
+     * @param capacity the number of tokens to make room for;
+     */
+    public void ensureCapacity (int capacity) {
+        if (capacity <= tokens.length) {
+            return;
+        }
+        int newCapacity = Math.max(capacity, tokens.length + (tokens.length >> 1));
+        tokens = Arrays.copyOf(tokens, newCapacity);
+        if (topicAssignments != null) {
+            topicAssignments = Arrays.copyOf(topicAssignments, newCapacity);
+        }
+        if (typeAssignments != null) {
+            typeAssignments = Arrays.copyOf(typeAssignments, newCapacity);
+        }
+    }
+
+    /**
+     * Release the unused capacity of the token storage, e.g. after all
+     * documents have been read.
+     */
+    public void trimToSize () {
+        if (tokens.length != numTokens) {
+            tokens = Arrays.copyOf(tokens, numTokens);
+            if (topicAssignments != null) {
+                topicAssignments = Arrays.copyOf(topicAssignments, numTokens);
+            }
+            if (typeAssignments != null) {
+                typeAssignments = Arrays.copyOf(typeAssignments, numTokens);
+            }
+        }
+    }
+
     /**
      * Read a file into a Corpus object. At this moment all files should
      * be four column, tab separated where the first column gives the id
@@ -66,6 +223,7 @@ public class Corpus implements Iterable<Document> {
      */
     public void readFile (String filename) throws IOException {
         BufferedReader in = new BufferedReader(new FileReader(filename));
+        int[] buffer = new int[256];
         for (String line = in.readLine(); line != null; line = in.readLine()) {
             if (line.trim().length() == 0) {
                 continue;
@@ -83,12 +241,14 @@ public class Corpus implements Iterable<Document> {
             }
             // We expect the document to be nicely tokenized, e.g. by Ucto
             String[] words = fields[3].split("\\s+");
-            ArrayList<Integer> tokens = new ArrayList<Integer>();
-            for (String word : words) {
-                if (wordIndex.getId(word) == null) {
-                    wordIndex.put(word);
+            if (words.length > buffer.length) {
+                buffer = new int[words.length];
+            }
+            for (int i = 0; i < words.length; i++) {
+                if (wordIndex.getId(words[i]) == null) {
+                    wordIndex.put(words[i]);
                 }
-                tokens.add(wordIndex.getId(word));
+                buffer[i] = wordIndex.getId(words[i]);
             }
             ArrayList<Integer> indexedTypes = new ArrayList<Integer>();
             for (String type : types) {
@@ -97,9 +257,28 @@ public class Corpus implements Iterable<Document> {
                 }
                 indexedTypes.add(typeIndex.getId(type));
             }
-            documents.add(new Document(tokens, source, indexedTypes, indexedLabels));
+            addDocument(buffer, 0, words.length, source, indexedTypes, indexedLabels);
         }
         in.close();
+        trimToSize();
+    }
+
+    /**
+     * Read a file into a Corpus object, in the format described at readFile(String),
+     * parsing the file on multiple threads. The resulting corpus and indexes are
+     * identical to those of readFile(String). The file should be UTF-8 encoded.
+     * Files written by CorpusCache are recognized and read directly.
+     *
+     * @param filename: a filename pointing to the file to read;
+     * @param numThreads: the number of threads to parse the file with;
+     * @throws IOException
+     */
+    public void readFile (String filename, int numThreads) throws IOException {
+        if (CorpusCache.isCache(filename)) {
+            CorpusCache.read(this, filename);
+        } else {
+            new CorpusReader(this, numThreads).read(filename);
+        }
     }
 
 }
@@ -0,0 +1,228 @@
+package util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A compact binary format for an already parsed corpus, so that large corpora do
+ * not have to be tokenized and indexed again for every run. A cache file holds the
+ * word, label and type vocabularies, followed by all documents with their source,
+ * their type and label ids and their token ids. All counts and ids are stored as
+ * unsigned variable length integers (7 bits per byte, least significant group
+ * first), strings as a varint length followed by their UTF-8 bytes.
+ *
+ * Reading memory maps the file. The ids of the file are mapped onto the indexes
+ * of the corpus that is read into, in order of first occurrence, so reading a cache
+ * gives the same corpus and ids as reading the original text file would.
+ */
+public class CorpusCache {
+
+    // "TMCC" followed by the version of the format
+    private static final int MAGIC = 0x544D4343;
+    private static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Check whether a file is a corpus cache.
+     *
+     * @param filename the file to check;
+     * @return true if the file starts with the header of a corpus cache;
+     * @throws IOException
+     */
+    public static boolean isCache (String filename) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            return file.length() >= 4 && file.readInt() == MAGIC;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Write a corpus to a cache file.
+     *
+     * @param corpus the corpus to write;
+     * @param file the file to write to;
+     * @throws IOException
+     */
+    public static void write (Corpus corpus, File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeIndex(out, corpus.getWordIndex());
+            writeIndex(out, corpus.getLabelIndex());
+            writeIndex(out, corpus.getTypeIndex());
+            writeVarint(out, corpus.size());
+            writeVarint(out, corpus.getNumTokens());
+            for (Document document : corpus) {
+                writeString(out, document.getSource());
+                writeIds(out, document.getTypes());
+                writeIds(out, document.getLabels());
+                writeVarint(out, document.size());
+                for (int position = 0; position < document.size(); position++) {
+                    writeVarint(out, document.getToken(position));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a cache file and add its documents to a corpus.
+     *
+     * @param corpus the corpus to add the documents to;
+     * @param filename the cache file to read;
+     * @throws IOException
+     */
+    public static void read (Corpus corpus, String filename) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            Input in = new Input(file.getChannel());
+            if (in.readInt() != MAGIC) {
+                throw new IOException(filename + " is not a corpus cache.");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported corpus cache version " + version + " in " + filename + ".");
+            }
+            Mapping words = new Mapping(in.readStrings(), corpus.getWordIndex());
+            Mapping labels = new Mapping(in.readStrings(), corpus.getLabelIndex());
+            Mapping types = new Mapping(in.readStrings(), corpus.getTypeIndex());
+            int numDocuments = in.readVarint();
+            int numTokens = in.readVarint();
+            if ((long) corpus.getNumTokens() + numTokens > Integer.MAX_VALUE - 8) {
+                throw new IOException("Too many tokens in " + filename + ": " + numTokens);
+            }
+            corpus.ensureCapacity(corpus.getNumTokens() + numTokens);
+            int[] tokens = new int[256];
+            for (int d = 0; d < numDocuments; d++) {
+                String source = in.readString();
+                ArrayList<Integer> indexedTypes = in.readIds(types);
+                ArrayList<Integer> indexedLabels = in.readIds(labels);
+                int length = in.readVarint();
+                if (length > tokens.length) {
+                    tokens = new int[Math.max(length, tokens.length * 2)];
+                }
+                for (int position = 0; position < length; position++) {
+                    tokens[position] = words.get(in.readVarint());
+                }
+                corpus.addDocument(tokens, 0, length, source, indexedTypes, indexedLabels);
+            }
+            corpus.trimToSize();
+        } finally {
+            file.close();
+        }
+    }
+
+    private static void writeIndex (DataOutputStream out, Index index) throws IOException {
+        writeVarint(out, index.size());
+        for (String item : index.items()) {
+            writeString(out, item);
+        }
+    }
+
+    private static void writeIds (DataOutputStream out, ArrayList<Integer> ids) throws IOException {
+        writeVarint(out, ids.size());
+        for (int id : ids) {
+            writeVarint(out, id);
+        }
+    }
+
+    private static void writeString (DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(UTF8);
+        writeVarint(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Write an int as a variable length integer. Negative values take five bytes.
+     *
+     * @param out the stream to write to;
+     * @param value the value to write;
+     * @throws IOException
+     */
+    public static void writeVarint (OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    /**
+     * Maps the ids of a cache file onto the ids of an Index, adding items
+     * to the index the first time they are used.
+     */
+    private static class Mapping {
+
+        private final String[] items;
+        private final int[] ids;
+        private final Index index;
+
+        Mapping (String[] items, Index index) {
+            this.items = items;
+            this.index = index;
+            this.ids = new int[items.length];
+            Arrays.fill(ids, -1);
+        }
+
+        int get (int id) {
+            int result = ids[id];
+            if (result < 0) {
+                if (index.getId(items[id]) == null) {
+                    index.put(items[id]);
+                }
+                result = index.getId(items[id]);
+                ids[id] = result;
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Reads the strings and ids of a cache file.
+     */
+    private static class Input extends MappedInput {
+
+        Input (FileChannel channel) throws IOException {
+            super(channel, 0, channel.size());
+        }
+
+        String readString () throws IOException {
+            byte[] bytes = new byte[readVarint()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) readByte();
+            }
+            return new String(bytes, UTF8);
+        }
+
+        String[] readStrings () throws IOException {
+            String[] strings = new String[readVarint()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString();
+            }
+            return strings;
+        }
+
+        ArrayList<Integer> readIds (Mapping mapping) throws IOException {
+            int size = readVarint();
+            ArrayList<Integer> ids = new ArrayList<Integer>(size);
+            for (int i = 0; i < size; i++) {
+                ids.add(mapping.get(readVarint()));
+            }
+            return ids;
+        }
+    }
+}
@@ -0,0 +1,415 @@
+package util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Reads a corpus file in the format of Corpus.readFile, but memory maps the file
+ * and parses line-aligned chunks of it in parallel with a byte-level tokenizer.
+ * Each chunk interns its words in a small local vocabulary keyed on the raw bytes,
+ * so no String is created per token. The local vocabularies are merged into the
+ * indexes of the corpus in file order afterwards, which gives every word, label
+ * and type exactly the id Corpus.readFile would have given it, independent of the
+ * number of threads. The file is expected to be UTF-8 encoded.
+ */
+public class CorpusReader {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // the preferred size of a chunk in bytes
+    private static final long CHUNK_SIZE = 32L << 20;
+
+    private final Corpus corpus;
+    private final int numThreads;
+
+    public CorpusReader (Corpus corpus, int numThreads) {
+        this.corpus = corpus;
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Read a file and add its documents to the corpus.
+     *
+     * @param filename the file to read;
+     * @throws IOException
+     */
+    public void read (String filename) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            FileChannel channel = file.getChannel();
+            long[] boundaries = boundaries(channel);
+            List<Callable<Chunk>> tasks = new ArrayList<Callable<Chunk>>(boundaries.length - 1);
+            for (int i = 0; i + 1 < boundaries.length; i++) {
+                final MappedByteBuffer buffer = channel.map(
+                        FileChannel.MapMode.READ_ONLY, boundaries[i], boundaries[i + 1] - boundaries[i]);
+                final long start = boundaries[i];
+                tasks.add(new Callable<Chunk>() {
+                    public Chunk call () throws IOException {
+                        Chunk chunk = new Chunk(buffer, start);
+                        chunk.parse();
+                        return chunk;
+                    }
+                });
+            }
+            List<Chunk> chunks = Parallel.invokeAll(pool, tasks);
+            // fail on the first malformed line in file order, like readFile would
+            for (Chunk chunk : chunks) {
+                if (chunk.error != null) {
+                    throw new IOException(chunk.error + " in " + filename);
+                }
+            }
+            long numTokens = corpus.getNumTokens();
+            for (Chunk chunk : chunks) {
+                numTokens += chunk.numTokens;
+            }
+            if (numTokens > Integer.MAX_VALUE - 8) {
+                throw new IOException("Too many tokens in " + filename + ": " + numTokens);
+            }
+            // interning the local vocabularies must happen in order to get the ids of readFile
+            for (Chunk chunk : chunks) {
+                chunk.intern(corpus.getWordIndex());
+            }
+            List<Callable<Void>> remaps = new ArrayList<Callable<Void>>(chunks.size());
+            for (final Chunk chunk : chunks) {
+                remaps.add(new Callable<Void>() {
+                    public Void call () {
+                        chunk.remap();
+                        return null;
+                    }
+                });
+            }
+            Parallel.invokeAll(pool, remaps);
+            corpus.ensureCapacity((int) numTokens);
+            for (Chunk chunk : chunks) {
+                chunk.addTo(corpus);
+            }
+            corpus.trimToSize();
+        } finally {
+            pool.shutdown();
+            file.close();
+        }
+    }
+
+    /**
+     * Split the file into line-aligned chunks of roughly equal size.
+     *
+     * @param channel the channel of the file;
+     * @return the start offsets of the chunks, followed by the size of the file;
+     * @throws IOException
+     */
+    private long[] boundaries (FileChannel channel) throws IOException {
+        long size = channel.size();
+        int numChunks = (int) Math.max(numThreads * 4L, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        numChunks = (int) Math.max(1, Math.min(numChunks, size / 1024 + 1));
+        long[] boundaries = new long[numChunks + 1];
+        boundaries[numChunks] = size;
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (int i = 1; i < numChunks; i++) {
+            long position = Math.max(boundaries[i - 1], size * i / numChunks);
+            boundaries[i] = nextLine(channel, position, buffer);
+        }
+        return boundaries;
+    }
+
+    /**
+     * Return the start of the first line that starts at or after a position.
+     */
+    private static long nextLine (FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        if (position == 0) {
+            return 0;
+        }
+        long size = channel.size();
+        // the line starts at position itself if the byte before it ends a line
+        long offset = position - 1;
+        while (offset < size) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n' || b == '\r') {
+                    return offset + i + 1;
+                }
+            }
+            offset += read;
+        }
+        return size;
+    }
+
+    static boolean isWhitespace (int c) {
+        // the characters matched by \s in a Java regular expression
+        return c == ' ' || c == '\t' || c == 0x0B || c == '\f' || c == '\r' || c == '\n';
+    }
+
+    /**
+     * A line-aligned part of the file, with its documents in local word ids.
+     */
+    private static class Chunk {
+
+        private final ByteBuffer buffer;
+        private final long start;
+        private final Vocabulary vocabulary = new Vocabulary();
+
+        private int[] tokens = new int[1024];
+        private int numTokens;
+        private final ArrayList<Integer> lengths = new ArrayList<Integer>();
+        private final ArrayList<String> sources = new ArrayList<String>();
+        private final ArrayList<String[]> types = new ArrayList<String[]>();
+        private final ArrayList<String[]> labels = new ArrayList<String[]>();
+        private int[] globalIds;
+        private String error;
+
+        // scratch space for the start and end of the pieces of a split
+        private int[] fields = new int[16];
+
+        Chunk (ByteBuffer buffer, long start) {
+            this.buffer = buffer;
+            this.start = start;
+        }
+
+        void parse () {
+            int end = buffer.limit();
+            int lineStart = 0;
+            while (lineStart < end) {
+                int lineEnd = lineStart;
+                while (lineEnd < end && buffer.get(lineEnd) != '\n' && buffer.get(lineEnd) != '\r') {
+                    lineEnd++;
+                }
+                if (!isBlank(lineStart, lineEnd)) {
+                    if (!parseLine(lineStart, lineEnd)) {
+                        error = "Malformed line at byte " + (start + lineStart);
+                        return;
+                    }
+                }
+                lineStart = lineEnd + 1;
+            }
+        }
+
+        private boolean isBlank (int start, int end) {
+            // String.trim removes all characters up to and including the space
+            for (int i = start; i < end; i++) {
+                if ((buffer.get(i) & 0xFF) > ' ') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean parseLine (int start, int end) {
+            int numFields = split(start, end, (byte) '\t', false);
+            if (numFields < 4) {
+                return false;
+            }
+            int[] line = Arrays.copyOf(fields, 8);
+            sources.add(decode(line[0], line[1]));
+            types.add(splitStrings(line[2], line[3]));
+            labels.add(splitStrings(line[4], line[5]));
+            int numWords = split(line[6], line[7], (byte) 0, true);
+            if (numTokens + numWords > tokens.length) {
+                tokens = Arrays.copyOf(tokens, Math.max(numTokens + numWords, tokens.length * 2));
+            }
+            for (int i = 0; i < numWords; i++) {
+                tokens[numTokens++] = vocabulary.intern(buffer, fields[2 * i], fields[2 * i + 1]);
+            }
+            lengths.add(numWords);
+            return true;
+        }
+
+        private String[] splitStrings (int start, int end) {
+            int count = split(start, end, (byte) ',', false);
+            String[] result = new String[count];
+            for (int i = 0; i < count; i++) {
+                result[i] = decode(fields[2 * i], fields[2 * i + 1]);
+            }
+            return result;
+        }
+
+        /**
+         * Split a range of the buffer the way String.split does: trailing empty
+         * pieces are dropped, and a range without separators yields itself.
+         * The start and end of each piece are stored in fields.
+         *
+         * @param start the start of the range;
+         * @param end the end of the range;
+         * @param separator the separator, if not splitting on whitespace;
+         * @param whitespace whether to split on runs of whitespace instead;
+         * @return the number of pieces;
+         */
+        private int split (int start, int end, byte separator, boolean whitespace) {
+            int count = 0;
+            int position = start;
+            for (int i = start; i < end; i++) {
+                byte b = buffer.get(i);
+                if (whitespace ? isWhitespace(b) : b == separator) {
+                    count = addPiece(count, position, i);
+                    if (whitespace) {
+                        while (i + 1 < end && isWhitespace(buffer.get(i + 1))) {
+                            i++;
+                        }
+                    }
+                    position = i + 1;
+                }
+            }
+            count = addPiece(count, position, end);
+            if (count > 1) {
+                while (count > 0 && fields[2 * count - 2] == fields[2 * count - 1]) {
+                    count--;
+                }
+            }
+            return count;
+        }
+
+        private int addPiece (int count, int start, int end) {
+            if (2 * count + 2 > fields.length) {
+                fields = Arrays.copyOf(fields, fields.length * 2);
+            }
+            fields[2 * count] = start;
+            fields[2 * count + 1] = end;
+            return count + 1;
+        }
+
+        private String decode (int start, int end) {
+            byte[] bytes = new byte[end - start];
+            for (int i = start; i < end; i++) {
+                bytes[i - start] = buffer.get(i);
+            }
+            return new String(bytes, UTF8);
+        }
+
+        void intern (Index wordIndex) {
+            globalIds = new int[vocabulary.size()];
+            for (int i = 0; i < globalIds.length; i++) {
+                String word = vocabulary.word(i);
+                if (wordIndex.getId(word) == null) {
+                    wordIndex.put(word);
+                }
+                globalIds[i] = wordIndex.getId(word);
+            }
+        }
+
+        void remap () {
+            for (int i = 0; i < numTokens; i++) {
+                tokens[i] = globalIds[tokens[i]];
+            }
+        }
+
+        void addTo (Corpus corpus) {
+            Index labelIndex = corpus.getLabelIndex();
+            Index typeIndex = corpus.getTypeIndex();
+            int offset = 0;
+            for (int d = 0; d < lengths.size(); d++) {
+                ArrayList<Integer> indexedLabels = new ArrayList<Integer>();
+                for (String label : labels.get(d)) {
+                    if (labelIndex.getId(label) == null) {
+                        labelIndex.put(label);
+                    }
+                    indexedLabels.add(labelIndex.getId(label));
+                }
+                ArrayList<Integer> indexedTypes = new ArrayList<Integer>();
+                for (String type : types.get(d)) {
+                    if (typeIndex.getId(type) == null) {
+                        typeIndex.put(type);
+                    }
+                    indexedTypes.add(typeIndex.getId(type));
+                }
+                int length = lengths.get(d);
+                corpus.addDocument(tokens, offset, length, sources.get(d), indexedTypes, indexedLabels);
+                offset += length;
+            }
+        }
+    }
+
+    /**
+     * Open-addressing hash table from byte strings to consecutive local ids, in
+     * order of first occurrence. The bytes of each word are copied into a pool once.
+     */
+    private static class Vocabulary {
+
+        private int[] table = new int[1024];
+        private int mask = table.length - 1;
+        private byte[] pool = new byte[1 << 16];
+        private int poolSize;
+        private int[] offsets = new int[512];
+        private int[] hashes = new int[512];
+        private int size;
+
+        int size () { return size; }
+
+        int intern (ByteBuffer buffer, int start, int end) {
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + buffer.get(i);
+            }
+            hash ^= hash >>> 16;
+            int slot = hash & mask;
+            while (table[slot] != 0) {
+                int id = table[slot] - 1;
+                if (hashes[id] == hash && matches(id, buffer, start, end)) {
+                    return id;
+                }
+                slot = (slot + 1) & mask;
+            }
+            int length = end - start;
+            if (poolSize + length > pool.length) {
+                pool = Arrays.copyOf(pool, Math.max(poolSize + length, pool.length * 2));
+            }
+            for (int i = start; i < end; i++) {
+                pool[poolSize++] = buffer.get(i);
+            }
+            if (size + 2 > offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            }
+            offsets[size] = poolSize - length;
+            offsets[size + 1] = poolSize;
+            hashes[size] = hash;
+            table[slot] = ++size;
+            if (size * 2 > table.length) {
+                rehash();
+            }
+            return size - 1;
+        }
+
+        private boolean matches (int id, ByteBuffer buffer, int start, int end) {
+            int offset = offsets[id];
+            if (offsets[id + 1] - offset != end - start) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                if (pool[offset++] != buffer.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void rehash () {
+            table = new int[table.length * 2];
+            mask = table.length - 1;
+            for (int id = 0; id < size; id++) {
+                int slot = hashes[id] & mask;
+                while (table[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = id + 1;
+            }
+        }
+
+        String word (int id) {
+            return new String(pool, offsets[id], offsets[id + 1] - offsets[id], UTF8);
+        }
+    }
+}
@@ -6,47 +6,69 @@ import java.util.Arrays;
 /**
  * A Document is a data structure that stores the tokens of a text, next
  * to its topic assignments and in TDTM, its type assignments.
+ *
+ * A Document is a lightweight view on a slice of the columnar storage of
+ * its Corpus: the tokens and assignments of all documents are stored in
+ * shared primitive arrays.
  */
 public class Document {
 
-    private final ArrayList<Integer> tokens;
-    private final int[] topicAssignments;
-    private final int[] typeAssignments;
+    private final Corpus corpus;
+    private final int offset;
+    private final int length;
     private final String source;
     private final ArrayList<Integer> types;
     private final ArrayList<Integer> topics;
 
-    public Document(ArrayList<Integer> tokens, String source, ArrayList<Integer> types, ArrayList<Integer> topics) {
-        this.tokens = tokens;
-        this.topicAssignments = new int[tokens.size()];
-        this.typeAssignments = new int[tokens.size()];
+    Document(Corpus corpus, int offset, int length, String source, ArrayList<Integer> types, ArrayList<Integer> topics) {
+        this.corpus = corpus;
+        this.offset = offset;
+        this.length = length;
 
         this.source = source;
         this.types = types;
         this.topics = topics;
     }
 
-    public int getTopic(int position) { return topicAssignments[position]; }
-    public int getToken(int position) { return tokens.get(position); }
-    public int getType(int position) { return typeAssignments[position]; }
+    public int getTopic(int position) { return corpus.topicAssignments()[offset + position]; }
+    public int getToken(int position) { return corpus.tokens()[offset + position]; }
+    public int getType(int position) { return corpus.typeAssignments()[offset + position]; }
 
     public void setTopic(int position, int topic) {
-        topicAssignments[position] = topic;
+        corpus.topicAssignments()[offset + position] = topic;
     }
 
     public void setType(int position, int type) {
-        typeAssignments[position] = type;
+        corpus.typeAssignments()[offset + position] = type;
     }
 
-    //public ArrayList<Integer> getTokens () { return tokens; }
-    public int[] getTopicAssignments () { return topicAssignments; }
-    public int[] getTypeAssignments () { return typeAssignments; }
+    /**
+     * @return a copy of the tokens of this document;
+     */
+    public int[] getTokens () { return Arrays.copyOfRange(corpus.tokens(), offset, offset + length); }
 
+    /**
+     * @return a copy of the topic assignments of this document;
+     */
+    public int[] copyTopicAssignments () {
+        return Arrays.copyOfRange(corpus.topicAssignments(), offset, offset + length);
+    }
+
+    /**
+     * @return a copy of the type assignments of this document;
+     */
+    public int[] copyTypeAssignments () {
+        return Arrays.copyOfRange(corpus.typeAssignments(), offset, offset + length);
+    }
 
-    public int size () { return tokens.size(); }
+    public int size () { return length; }
+
+    /**
+     * @return the position of the first token of this document in the token array of the corpus;
+     */
+    public int getOffset () { return offset; }
 
     public ArrayList<Integer> getTypes () { return types; }
     public String getSource () { return source; }
     public ArrayList<Integer> getLabels () { return topics; }
 }
-
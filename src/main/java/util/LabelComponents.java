@@ -0,0 +1,147 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The connected components of the label co-occurrence graph of a corpus, in which
+ * two labels are connected if some document has both. A document of L-LDA is only
+ * assigned to its own labels, so the documents of different components never touch
+ * the same topic counts and the components can be sampled independently without any
+ * approximation. The components are found with a union-find over the labels, and
+ * numbered in the order in which their first document appears in the corpus.
+ */
+public class LabelComponents {
+
+    // the component of each label, or -1 for labels without documents
+    private final int[] componentOfLabel;
+    private final List<List<Document>> documents = new ArrayList<List<Document>>();
+    private final List<Long> numTokens = new ArrayList<Long>();
+
+    /**
+     * @param corpus the corpus, of which all labels must be below numLabels;
+     * @param numLabels the number of labels;
+     */
+    public LabelComponents (Corpus corpus, int numLabels) {
+        int[] parent = new int[numLabels];
+        int[] size = new int[numLabels];
+        for (int label = 0; label < numLabels; label++) {
+            parent[label] = label;
+            size[label] = 1;
+        }
+        for (Document document : corpus) {
+            ArrayList<Integer> labels = document.getLabels();
+            for (int i = 1; i < labels.size(); i++) {
+                union(parent, size, labels.get(0), labels.get(i));
+            }
+        }
+        int[] componentOfRoot = new int[numLabels];
+        Arrays.fill(componentOfRoot, -1);
+        for (Document document : corpus) {
+            if (document.getLabels().isEmpty()) {
+                continue;
+            }
+            int root = find(parent, document.getLabels().get(0));
+            if (componentOfRoot[root] == -1) {
+                componentOfRoot[root] = documents.size();
+                documents.add(new ArrayList<Document>());
+                numTokens.add(0L);
+            }
+            int component = componentOfRoot[root];
+            documents.get(component).add(document);
+            numTokens.set(component, numTokens.get(component) + document.size());
+        }
+        componentOfLabel = new int[numLabels];
+        for (int label = 0; label < numLabels; label++) {
+            componentOfLabel[label] = componentOfRoot[find(parent, label)];
+        }
+    }
+
+    /**
+     * @return the number of components with at least one document;
+     */
+    public int size () { return documents.size(); }
+
+    /**
+     * @param label the label;
+     * @return the component of the label, or -1 if no document has the label;
+     */
+    public int componentOf (int label) { return componentOfLabel[label]; }
+
+    /**
+     * @param component the component;
+     * @return the documents of the component, in the order of the corpus;
+     */
+    public List<Document> documents (int component) { return documents.get(component); }
+
+    /**
+     * @param component the component;
+     * @return the number of tokens in the documents of the component;
+     */
+    public long numTokens (int component) { return numTokens.get(component); }
+
+    /**
+     * Divide the components over a number of parts with roughly the same number of
+     * tokens, by handing the largest remaining component to the part with the fewest
+     * tokens so far. A component is never split, so a part can not get fewer tokens
+     * than the largest component.
+     *
+     * @param numParts the number of parts;
+     * @return a list of numParts (possibly empty) lists of components;
+     */
+    public List<List<Integer>> schedule (int numParts) {
+        List<Integer> order = new ArrayList<Integer>(size());
+        for (int component = 0; component < size(); component++) {
+            order.add(component);
+        }
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare (Integer a, Integer b) {
+                int bySize = numTokens.get(b).compareTo(numTokens.get(a));
+                return bySize != 0 ? bySize : a.compareTo(b);
+            }
+        });
+        List<List<Integer>> parts = new ArrayList<List<Integer>>(numParts);
+        long[] load = new long[numParts];
+        for (int part = 0; part < numParts; part++) {
+            parts.add(new ArrayList<Integer>());
+        }
+        for (int component : order) {
+            int lightest = 0;
+            for (int part = 1; part < numParts; part++) {
+                if (load[part] < load[lightest]) {
+                    lightest = part;
+                }
+            }
+            parts.get(lightest).add(component);
+            load[lightest] += numTokens.get(component);
+        }
+        return parts;
+    }
+
+    private static int find (int[] parent, int label) {
+        while (parent[label] != label) {
+            // path halving
+            parent[label] = parent[parent[label]];
+            label = parent[label];
+        }
+        return label;
+    }
+
+    private static void union (int[] parent, int[] size, int a, int b) {
+        a = find(parent, a);
+        b = find(parent, b);
+        if (a == b) {
+            return;
+        }
+        if (size[a] < size[b]) {
+            int swap = a;
+            a = b;
+            b = swap;
+        }
+        parent[b] = a;
+        size[a] += size[b];
+    }
+}
@@ -0,0 +1,377 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Estimates the probability of held-out documents under a trained topic model with
+ * the left-to-right particle method (Wallach et al., 2009). For every token of a
+ * document a set of particles resamples the topics of the preceding tokens and then
+ * predicts the token from them, so the product of the predictions is an unbiased
+ * estimate of the probability of the document. The documents are streamed from a
+ * corpus file in batches, so the file is never held in memory as a whole, and are
+ * evaluated on several threads. Each document gets its own random number generator,
+ * seeded from its position in the file, so the result does not depend on the number
+ * of threads. Words unknown to the model are skipped.
+ */
+public class LeftToRight {
+
+    public static Logger logger = Logger.getLogger(LeftToRight.class.getName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // the number of documents a worker claims at once
+    private static final int BATCH_SIZE = 16;
+    // the number of batches per thread read from the file at once
+    private static final int BATCHES_PER_THREAD = 8;
+
+    private final int[][] wordTopicCounts;
+    private final int numTopics;
+    private final int numWords;
+    private final double alpha;
+    private final double beta;
+    private final double alphaSum;
+    // 1 / (betaSum + topicCounts[topic])
+    private final double[] inverseDenominators;
+    private final int numParticles;
+
+    /**
+     * The log-likelihood of a set of held-out documents.
+     */
+    public static class Result {
+
+        public long numDocuments;
+        public long numTokens;
+        public long numUnknownTokens;
+        public double logLikelihood;
+
+        /**
+         * @return the per-word perplexity of the documents;
+         */
+        public double perplexity () {
+            return Math.exp(-logLikelihood / Math.max(numTokens, 1));
+        }
+
+        /**
+         * Write the result as "name\tvalue" lines.
+         *
+         * @param file the file to write to;
+         * @throws IOException
+         */
+        public void write (File file) throws IOException {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+            try {
+                out.print("documents\t" + numDocuments + "\n");
+                out.print("tokens\t" + numTokens + "\n");
+                out.print("unknownTokens\t" + numUnknownTokens + "\n");
+                out.print("logLikelihood\t" + logLikelihood + "\n");
+                out.print("perplexity\t" + perplexity() + "\n");
+            } finally {
+                out.close();
+            }
+        }
+
+        @Override
+        public String toString () {
+            return numDocuments + " documents, " + numTokens + " tokens (" + numUnknownTokens + " unknown skipped), "
+                    + "log-likelihood " + logLikelihood + ", perplexity " + perplexity();
+        }
+    }
+
+    /**
+     * @param wordTopicCounts the number of times each word is assigned to each topic in the model;
+     * @param topicCounts the number of words assigned to each topic in the model;
+     * @param alpha smoothing parameter over the topic distribution of a document;
+     * @param beta smoothing parameter over the unigram distribution;
+     * @param betaSum beta times the number of words;
+     * @param numParticles the number of particles per document;
+     */
+    public LeftToRight (int[][] wordTopicCounts, int[] topicCounts, double alpha, double beta, double betaSum, int numParticles) {
+        if (numParticles < 1) {
+            throw new IllegalArgumentException("At least one particle is needed: " + numParticles);
+        }
+        this.wordTopicCounts = wordTopicCounts;
+        this.numTopics = topicCounts.length;
+        this.numWords = wordTopicCounts.length;
+        this.alpha = alpha;
+        this.beta = beta;
+        this.alphaSum = alpha * numTopics;
+        this.numParticles = numParticles;
+        inverseDenominators = new double[numTopics];
+        for (int topic = 0; topic < numTopics; topic++) {
+            inverseDenominators[topic] = 1.0 / (betaSum + topicCounts[topic]);
+        }
+    }
+
+    /**
+     * Evaluate the documents of a corpus file, in the format described at Corpus.readFile.
+     * Only the words of the documents are used.
+     *
+     * @param filename the file holding the held-out documents, which should be UTF-8 encoded;
+     * @param wordIndex the word index of the model;
+     * @param numThreads the number of threads to use;
+     * @param seed the seed from which the per-document seeds are derived;
+     * @return the log-likelihood of the documents;
+     * @throws IOException
+     */
+    public Result evaluate (String filename, Index wordIndex, int numThreads, long seed) throws IOException {
+        numThreads = Math.max(numThreads, 1);
+        List<Worker> workers = new ArrayList<Worker>(numThreads);
+        for (int thread = 0; thread < numThreads; thread++) {
+            workers.add(new Worker(wordIndex, seed));
+        }
+        ExecutorService pool = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(filename), UTF8));
+        Result result = new Result();
+        try {
+            List<String> texts = new ArrayList<String>();
+            int batchSize = numThreads * BATCH_SIZE * BATCHES_PER_THREAD;
+            long lineNumber = 0;
+            boolean reading = true;
+            while (reading) {
+                texts.clear();
+                String line;
+                while (texts.size() < batchSize && (line = in.readLine()) != null) {
+                    lineNumber++;
+                    if (line.trim().length() > 0) {
+                        String text = text(line);
+                        if (text == null) {
+                            throw new IOException("Malformed line " + lineNumber + " in " + filename);
+                        }
+                        texts.add(text);
+                    }
+                }
+                reading = texts.size() == batchSize;
+                evaluate(texts, result, workers, pool);
+                logger.info("Evaluated " + result.numDocuments + " documents.");
+            }
+        } finally {
+            in.close();
+            if (pool != null) {
+                pool.shutdown();
+            }
+        }
+        for (Worker worker : workers) {
+            result.numTokens += worker.numTokens;
+            result.numUnknownTokens += worker.numUnknownTokens;
+        }
+        return result;
+    }
+
+    /**
+     * Return the text of a line, split into tab separated fields the way the corpus
+     * readers do: the text is the fourth field, and trailing empty fields do not count.
+     *
+     * @param line the line;
+     * @return the text, or null if the line has fewer than four fields;
+     */
+    private static String text (String line) {
+        int start = 0;
+        for (int field = 0; field < 3; field++) {
+            start = line.indexOf('\t', start) + 1;
+            if (start == 0) {
+                return null;
+            }
+        }
+        int end = line.indexOf('\t', start);
+        if (end < 0) {
+            end = line.length();
+        }
+        for (int i = start; i < line.length(); i++) {
+            if (line.charAt(i) != '\t') {
+                return line.substring(start, end);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Evaluate a batch of documents and add their log-likelihoods to the result, in
+     * the order of the documents.
+     */
+    private void evaluate (final List<String> lines, Result result, List<Worker> workers, ExecutorService pool) {
+        final double[] logLikelihoods = new double[lines.size()];
+        final long first = result.numDocuments;
+        if (pool == null) {
+            for (int index = 0; index < lines.size(); index++) {
+                logLikelihoods[index] = workers.get(0).evaluate(lines.get(index), first + index);
+            }
+        } else {
+            final AtomicInteger next = new AtomicInteger(0);
+            List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(workers.size());
+            for (final Worker worker : workers) {
+                tasks.add(new Callable<Void>() {
+                    public Void call () {
+                        for (int start = next.getAndAdd(BATCH_SIZE); start < lines.size(); start = next.getAndAdd(BATCH_SIZE)) {
+                            int end = Math.min(start + BATCH_SIZE, lines.size());
+                            for (int index = start; index < end; index++) {
+                                logLikelihoods[index] = worker.evaluate(lines.get(index), first + index);
+                            }
+                        }
+                        return null;
+                    }
+                });
+            }
+            Parallel.invokeAll(pool, tasks);
+        }
+        for (double logLikelihood : logLikelihoods) {
+            result.logLikelihood += logLikelihood;
+        }
+        result.numDocuments += lines.size();
+    }
+
+    /**
+     * Evaluates documents on a single thread, keeping the particles between documents.
+     */
+    private class Worker {
+
+        private final Index wordIndex;
+        private final long seed;
+        private final double[] topicScores = new double[numTopics];
+        private final int[][] particleTopicCounts = new int[numParticles][numTopics];
+        private int[][] particleTopics = new int[numParticles][0];
+        private int[] words = new int[0];
+
+        private long numTokens = 0;
+        private long numUnknownTokens = 0;
+
+        private Worker (Index wordIndex, long seed) {
+            this.wordIndex = wordIndex;
+            this.seed = seed;
+        }
+
+        /**
+         * @param text the text of the document;
+         * @param index the position of the document in the file;
+         * @return the estimated log-likelihood of the known words of the document;
+         */
+        private double evaluate (String text, long index) {
+            // split on runs of whitespace the way CorpusReader does: leading whitespace
+            // gives an empty first word and trailing whitespace is dropped
+            int end = text.length();
+            while (end > 0 && CorpusReader.isWhitespace(text.charAt(end - 1))) {
+                end--;
+            }
+            int length = 0;
+            if (end > 0 || text.length() == 0) {
+                int start = 0;
+                for (int i = 0; i < end; i++) {
+                    if (CorpusReader.isWhitespace(text.charAt(i))) {
+                        length = addWord(text.substring(start, i), length);
+                        while (CorpusReader.isWhitespace(text.charAt(i + 1))) {
+                            i++;
+                        }
+                        start = i + 1;
+                    }
+                }
+                length = addWord(text.substring(start, end), length);
+            }
+            numTokens += length;
+            return logLikelihood(length, new Randoms(Parallel.documentSeed(seed, index)));
+        }
+
+        /**
+         * Append a word to the words of the document if the model knows it.
+         *
+         * @param token the word;
+         * @param length the number of words so far;
+         * @return the new number of words;
+         */
+        private int addWord (String token, int length) {
+            Integer word = wordIndex.getId(token);
+            if (word == null || word >= numWords) {
+                numUnknownTokens++;
+                return length;
+            }
+            if (length == words.length) {
+                int capacity = Math.max(16, 2 * length);
+                words = Arrays.copyOf(words, capacity);
+                for (int particle = 0; particle < numParticles; particle++) {
+                    particleTopics[particle] = new int[capacity];
+                }
+            }
+            words[length] = word;
+            return length + 1;
+        }
+
+        /**
+         * Run the left-to-right algorithm over the first length words.
+         */
+        private double logLikelihood (int length, Randoms random) {
+            for (int[] counts : particleTopicCounts) {
+                Arrays.fill(counts, 0);
+            }
+            double logLikelihood = 0.0;
+            for (int position = 0; position < length; position++) {
+                double probability = 0.0;
+                for (int particle = 0; particle < numParticles; particle++) {
+                    int[] topics = particleTopics[particle];
+                    int[] counts = particleTopicCounts[particle];
+                    for (int previous = 0; previous < position; previous++) {
+                        counts[topics[previous]]--;
+                        topics[previous] = sample(score(words[previous], counts), random);
+                        counts[topics[previous]]++;
+                    }
+                    double sum = score(words[position], counts);
+                    probability += sum / (position + alphaSum);
+                    topics[position] = sample(sum, random);
+                    counts[topics[position]]++;
+                }
+                logLikelihood += Math.log(probability / numParticles);
+            }
+            return logLikelihood;
+        }
+
+        /**
+         * Fill topicScores with the unnormalized probability of each topic for a word.
+         *
+         * @param word the word;
+         * @param counts the topic counts of the other words of the particle;
+         * @return the sum of the scores;
+         */
+        private double score (int word, int[] counts) {
+            int[] wordCounts = wordTopicCounts[word];
+            double sum = 0.0;
+            for (int topic = 0; topic < numTopics; topic++) {
+                double score = (alpha + counts[topic]) * (beta + wordCounts[topic]) * inverseDenominators[topic];
+                sum += score;
+                topicScores[topic] = score;
+            }
+            return sum;
+        }
+
+        /**
+         * Draw a topic from topicScores.
+         *
+         * @param sum the sum of the scores;
+         * @param random the random number generator of the document;
+         * @return the sampled topic;
+         */
+        private int sample (double sum, Randoms random) {
+            double sample = random.nextUniform() * sum;
+            int topic = 0;
+            sample -= topicScores[0];
+            // the last topic also takes what rounding leaves of the sample
+            while (sample > 0.0 && topic < numTopics - 1) {
+                topic++;
+                sample -= topicScores[topic];
+            }
+            return topic;
+        }
+    }
+}
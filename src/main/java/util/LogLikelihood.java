@@ -0,0 +1,251 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Building blocks for the collapsed joint log-likelihood of the topic models. The
+ * likelihood of a set of counts under a Dirichlet prior is a sum of log gamma
+ * functions of the counts plus the prior, so for a fixed prior the values are
+ * cached in a table indexed by count. The sums over the (large) topic-word matrix
+ * can be split over a pool of threads.
+ */
+public class LogLikelihood {
+
+    // the largest number of values cached in a table; larger counts are computed directly
+    private static final int MAX_TABLE_SIZE = 1 << 20;
+    // the number of values computed by recurrence between two exact values in a table
+    private static final int EXACT_INTERVAL = 256;
+
+    // Lanczos approximation with g = 7 and n = 9
+    private static final double LANCZOS_G = 7.0;
+    private static final double[] LANCZOS = {
+            0.99999999999980993, 676.5203681218851, -1259.1392167224028,
+            771.32342877765313, -176.61502916214059, 12.507343278686905,
+            -0.13857109526572012, 9.9843695780195716e-6, 1.5056327351493116e-7
+    };
+    private static final double HALF_LOG_TWO_PI = 0.5 * Math.log(2 * Math.PI);
+
+    /**
+     * Work on a single row, summed by sum.
+     */
+    public interface Term {
+
+        /**
+         * @param row the row to compute the term for;
+         * @return the value of the term;
+         */
+        double value (int row);
+    }
+
+    /**
+     * A table of lgamma(offset + count) for counts from zero up to the size of the
+     * table. The table is grown by ensureSize, which must not be called while other
+     * threads read the table.
+     */
+    public static class Table {
+
+        private final double offset;
+        private double[] values = new double[0];
+
+        /**
+         * @param offset the prior added to each count, e.g. beta;
+         */
+        public Table (double offset) {
+            this.offset = offset;
+        }
+
+        public double offset () { return offset; }
+
+        /**
+         * Make sure the table holds the values for counts up to maxCount, up to
+         * a maximum table size.
+         *
+         * @param maxCount the largest count that will be looked up;
+         */
+        public void ensureSize (int maxCount) {
+            int size = (int) Math.min((long) maxCount + 1, MAX_TABLE_SIZE);
+            if (size <= values.length) {
+                return;
+            }
+            double[] grown = new double[size];
+            System.arraycopy(values, 0, grown, 0, values.length);
+            for (int count = values.length; count < size; count++) {
+                // lgamma(x + 1) = lgamma(x) + log(x), with exact values now and then against drift
+                grown[count] = count % EXACT_INTERVAL == 0
+                        ? lgamma(offset + count)
+                        : grown[count - 1] + Math.log(offset + count - 1);
+            }
+            values = grown;
+        }
+
+        /**
+         * @param count the count;
+         * @return lgamma(offset + count);
+         */
+        public double get (int count) {
+            return count < values.length ? values[count] : lgamma(offset + count);
+        }
+    }
+
+    /**
+     * Return a table for a prior, reusing the given table if it was made for the same prior.
+     *
+     * @param table the cached table, or null;
+     * @param offset the prior added to each count;
+     * @return a table of lgamma(offset + count);
+     */
+    public static Table table (Table table, double offset) {
+        return table != null && table.offset() == offset ? table : new Table(offset);
+    }
+
+    /**
+     * The natural logarithm of the gamma function, following the Lanczos
+     * approximation, with the reflection formula for x below 0.5.
+     *
+     * @param x the argument, which must not be zero or a negative integer;
+     * @return log |gamma(x)|;
+     */
+    public static double lgamma (double x) {
+        if (x < 0.5) {
+            return Math.log(Math.PI / Math.abs(Math.sin(Math.PI * x))) - lgamma(1 - x);
+        }
+        x -= 1;
+        double sum = LANCZOS[0];
+        for (int i = 1; i < LANCZOS.length; i++) {
+            sum += LANCZOS[i] / (x + i);
+        }
+        double t = x + LANCZOS_G + 0.5;
+        return HALF_LOG_TWO_PI + (x + 0.5) * Math.log(t) - t + Math.log(sum);
+    }
+
+    /**
+     * The log-likelihood of a vector of counts under a symmetric Dirichlet prior,
+     * with the multinomial integrated out. Zero counts add nothing.
+     *
+     * @param counts the counts;
+     * @param total the sum of the counts;
+     * @param dimension the dimension of the Dirichlet, which may be smaller than counts.length
+     *                  if only part of the counts can be non-zero;
+     * @param alpha the parameter of the prior;
+     * @param table a table of lgamma(alpha + count);
+     * @return the log-likelihood of the counts;
+     */
+    public static double symmetric (int[] counts, int total, int dimension, double alpha, Table table) {
+        double value = lgamma(dimension * alpha) - lgamma(dimension * alpha + total);
+        double zero = table.get(0);
+        for (int count : counts) {
+            if (count > 0) {
+                value += table.get(count) - zero;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * The log-likelihood of a vector of counts under a symmetric Dirichlet prior over
+     * a subset of the outcomes, e.g. the labels of a document. Only the counts of
+     * the outcomes in the subset are read, and they are reset to zero, so the same
+     * counts array can be reused for the next vector.
+     *
+     * @param counts the counts, indexed by outcome;
+     * @param support the outcomes of the Dirichlet;
+     * @param total the sum of the counts;
+     * @param alpha the parameter of the prior;
+     * @param table a table of lgamma(alpha + count);
+     * @return the log-likelihood of the counts;
+     */
+    public static double symmetric (int[] counts, List<Integer> support, int total, double alpha, Table table) {
+        double value = lgamma(support.size() * alpha) - lgamma(support.size() * alpha + total);
+        double zero = table.get(0);
+        for (int outcome : support) {
+            if (counts[outcome] > 0) {
+                value += table.get(counts[outcome]) - zero;
+                counts[outcome] = 0;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * The log-likelihood of the words given their topics, for the topics from
+     * first to last (exclusive) under a symmetric Dirichlet prior beta over
+     * all words. The sum over the words is split over the pool.
+     *
+     * @param wordTopicCounts the number of times each word is assigned to each topic;
+     * @param topicCounts the number of words assigned to each topic;
+     * @param first the first topic;
+     * @param last the topic after the last topic;
+     * @param beta the parameter of the prior;
+     * @param table a table of lgamma(beta + count);
+     * @param pool the pool to use, or null to compute the sum in the calling thread;
+     * @param numParts the number of blocks of words to split the sum into;
+     * @return the log-likelihood of the words;
+     */
+    public static double topicWords (final int[][] wordTopicCounts, int[] topicCounts, final int first, final int last,
+                                     double beta, final Table table, ExecutorService pool, int numParts) {
+        int numWords = wordTopicCounts.length;
+        int maxCount = 0;
+        double value = 0.0;
+        for (int topic = first; topic < last; topic++) {
+            maxCount = Math.max(maxCount, topicCounts[topic]);
+            value += lgamma(numWords * beta) - lgamma(numWords * beta + topicCounts[topic]);
+        }
+        table.ensureSize(maxCount);
+        final double zero = table.get(0);
+        return value + sum(numWords, pool, numParts, new Term() {
+            public double value (int word) {
+                int[] counts = wordTopicCounts[word];
+                double value = 0.0;
+                for (int topic = first; topic < last; topic++) {
+                    if (counts[topic] > 0) {
+                        value += table.get(counts[topic]) - zero;
+                    }
+                }
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Sum a term over all rows. The rows are split into numParts contiguous blocks,
+     * which are summed on the pool and then added in order, so the result does
+     * not depend on the scheduling.
+     *
+     * @param numRows the number of rows;
+     * @param pool the pool to use, or null to compute the sum in the calling thread;
+     * @param numParts the number of blocks;
+     * @param term the term to sum;
+     * @return the sum of the term over all rows;
+     */
+    public static double sum (final int numRows, ExecutorService pool, int numParts, final Term term) {
+        if (pool == null || numParts <= 1) {
+            double value = 0.0;
+            for (int row = 0; row < numRows; row++) {
+                value += term.value(row);
+            }
+            return value;
+        }
+        List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(numParts);
+        for (int part = 0; part < numParts; part++) {
+            final int start = (int) ((long) numRows * part / numParts);
+            final int end = (int) ((long) numRows * (part + 1) / numParts);
+            tasks.add(new Callable<Double>() {
+                public Double call () {
+                    double value = 0.0;
+                    for (int row = start; row < end; row++) {
+                        value += term.value(row);
+                    }
+                    return value;
+                }
+            });
+        }
+        double value = 0.0;
+        for (double part : Parallel.invokeAll(pool, tasks)) {
+            value += part;
+        }
+        return value;
+    }
+}
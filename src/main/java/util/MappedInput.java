@@ -0,0 +1,73 @@
+package util;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sequential reader over a region of a memory mapped file. The region is mapped
+ * in windows, so that regions larger than 2GB can be read as well.
+ */
+class MappedInput {
+
+    // the maximum number of bytes mapped at once
+    private static final int WINDOW_SIZE = 1 << 30;
+
+    private final FileChannel channel;
+    private final long end;
+    private MappedByteBuffer buffer;
+    private long position;
+
+    /**
+     * @param channel the channel of the file to read;
+     * @param start the position of the first byte to read;
+     * @param end the position after the last byte to read;
+     * @throws IOException
+     */
+    MappedInput (FileChannel channel, long start, long end) throws IOException {
+        this.channel = channel;
+        this.end = end;
+        this.position = start;
+        map();
+    }
+
+    private void map () throws IOException {
+        long size = Math.min(WINDOW_SIZE, end - position);
+        buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+    }
+
+    int readByte () throws IOException {
+        if (!buffer.hasRemaining()) {
+            position += buffer.limit();
+            map();
+            if (!buffer.hasRemaining()) {
+                throw new IOException("Unexpected end of file.");
+            }
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    /**
+     * @return the next four bytes as a big-endian int;
+     * @throws IOException
+     */
+    int readInt () throws IOException {
+        return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+    }
+
+    /**
+     * @return the next variable length integer, as written by CorpusCache.writeVarint;
+     * @throws IOException
+     */
+    int readVarint () throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer.");
+    }
+}
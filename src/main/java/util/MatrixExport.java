@@ -0,0 +1,195 @@
+package util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Exports dense matrices, such as the document-topic (theta) and topic-word (phi)
+ * distributions of a model, for programs that would otherwise parse the text output.
+ * A matrix is written as raw little-endian float32 values in row-major order, so it
+ * can be memory mapped directly (e.g. numpy.memmap with dtype '<f4'). Next to it a
+ * small JSON sidecar gives its shape and the names of the TSV files that hold the
+ * labels of its rows and columns. A label file has one "id\titem" line per row or
+ * column, after a header line; tabs, newlines and backslashes in items are escaped.
+ */
+public class MatrixExport {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Writes a matrix row by row and its sidecar when it is closed.
+     */
+    public static class Writer {
+
+        private final File directory;
+        private final String name;
+        private final int numRows;
+        private final int numColumns;
+        private final String rowLabels;
+        private final String columnLabels;
+        private final FileOutputStream stream;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        private int rows;
+
+        /**
+         * @param directory the directory to write the matrix to;
+         * @param name the name of the matrix, used for the file names;
+         * @param numRows the number of rows of the matrix;
+         * @param numColumns the number of columns of the matrix;
+         * @param rowLabels the file holding the labels of the rows;
+         * @param columnLabels the file holding the labels of the columns;
+         * @throws IOException
+         */
+        public Writer (File directory, String name, int numRows, int numColumns, String rowLabels, String columnLabels) throws IOException {
+            this.directory = directory;
+            this.name = name;
+            this.numRows = numRows;
+            this.numColumns = numColumns;
+            this.rowLabels = rowLabels;
+            this.columnLabels = columnLabels;
+            stream = new FileOutputStream(new File(directory, name + ".f32"));
+            channel = stream.getChannel();
+        }
+
+        /**
+         * Write the next row of the matrix.
+         *
+         * @param row the values of the row, which are rounded to float;
+         * @throws IOException
+         */
+        public void writeRow (double[] row) throws IOException {
+            if (row.length != numColumns) {
+                throw new IllegalArgumentException("Expected " + numColumns + " columns, got " + row.length + ".");
+            }
+            if (rows == numRows) {
+                throw new IllegalStateException("All " + numRows + " rows of " + name + " have been written.");
+            }
+            for (double value : row) {
+                if (buffer.remaining() < 4) {
+                    flush();
+                }
+                buffer.putFloat((float) value);
+            }
+            rows++;
+        }
+
+        /**
+         * Finish the matrix and write its sidecar.
+         *
+         * @throws IOException
+         */
+        public void close () throws IOException {
+            try {
+                flush();
+            } finally {
+                stream.close();
+            }
+            if (rows != numRows) {
+                throw new IOException("Wrote " + rows + " of the " + numRows + " rows of " + name + ".");
+            }
+            PrintWriter sidecar = new PrintWriter(new OutputStreamWriter(new FileOutputStream(new File(directory, name + ".json")), UTF8));
+            try {
+                sidecar.print("{\n");
+                sidecar.print("  \"data\": " + quote(name + ".f32") + ",\n");
+                sidecar.print("  \"dtype\": \"float32\",\n");
+                sidecar.print("  \"byteOrder\": \"little\",\n");
+                sidecar.print("  \"order\": \"row-major\",\n");
+                sidecar.print("  \"shape\": [" + numRows + ", " + numColumns + "],\n");
+                sidecar.print("  \"rows\": " + quote(rowLabels) + ",\n");
+                sidecar.print("  \"columns\": " + quote(columnLabels) + "\n");
+                sidecar.print("}\n");
+            } finally {
+                sidecar.close();
+            }
+        }
+
+        private void flush () throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Write the first items of an index as a label file.
+     *
+     * @param file the file to write to;
+     * @param index the index to write;
+     * @param size the number of items to write, e.g. the number of words known to a model;
+     * @throws IOException
+     */
+    public static void writeLabels (File file, Index index, int size) throws IOException {
+        PrintWriter out = labelWriter(file, "item");
+        try {
+            for (int id = 0; id < size; id++) {
+                out.print(id + "\t" + escape(index.getItem(id)) + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the sources of the documents of a corpus as a label file.
+     *
+     * @param file the file to write to;
+     * @param corpus the corpus to write the sources of;
+     * @throws IOException
+     */
+    public static void writeSources (File file, Corpus corpus) throws IOException {
+        PrintWriter out = labelWriter(file, "source");
+        try {
+            for (int id = 0; id < corpus.size(); id++) {
+                out.print(id + "\t" + escape(corpus.get(id).getSource()) + "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static PrintWriter labelWriter (File file, String column) throws IOException {
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8), false);
+        out.print("id\t" + column + "\n");
+        return out;
+    }
+
+    private static String escape (String item) {
+        StringBuilder escaped = new StringBuilder(item.length());
+        for (int i = 0; i < item.length(); i++) {
+            char c = item.charAt(i);
+            switch (c) {
+                case '\\': escaped.append("\\\\"); break;
+                case '\t': escaped.append("\\t"); break;
+                case '\n': escaped.append("\\n"); break;
+                case '\r': escaped.append("\\r"); break;
+                default: escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String quote (String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
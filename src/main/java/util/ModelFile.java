@@ -0,0 +1,554 @@
+package util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+
+/**
+ * A versioned binary container for trained models. A model file starts with a
+ * header (magic number, format version and the kind of model), followed by named
+ * sections. Each section has a small header (name, kind and length of its payload)
+ * and a payload that starts at a multiple of 8 bytes. All numbers are little-endian,
+ * and count matrices are stored as flat row-major blocks of ints, so that the reader
+ * can map them with FileChannel.map and copy them into the heap row by row with bulk
+ * copies, instead of decoding them element by element as object serialization does.
+ *
+ * Count matrices can also be written sparse: per row, the non-zero columns in ascending
+ * order with their counts, the columns delta encoded and everything stored as variable
+ * length integers. Since most counts of a trained model are zero, this is much smaller
+ * than the dense block. The reader rebuilds either a dense int[][] or a SparseMatrix
+ * from both encodings.
+ */
+public class ModelFile {
+
+    // "TMMF" read as a little-endian int
+    private static final int MAGIC = 0x464D4D54;
+    public static final int VERSION = 2;
+
+    // encodings of the count matrices
+    public static final String DENSE = "dense";
+    public static final String SPARSE = "sparse";
+
+    // section kinds
+    private static final int INTS = 1;
+    private static final int DOUBLES = 2;
+    private static final int MATRIX = 3;
+    private static final int STRINGS = 4;
+    private static final int BYTES = 5;
+    private static final int SPARSE_MATRIX = 6;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // the maximum number of bytes mapped at once
+    private static final int WINDOW_SIZE = 1 << 30;
+
+    /**
+     * Check whether a file is a model file in this format, as opposed to
+     * a model written with object serialization.
+     *
+     * @param file the file to check;
+     * @return true if the file starts with the magic number of a model file;
+     * @throws IOException
+     */
+    public static boolean isModelFile (File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return in.length() >= 4 && Integer.reverseBytes(in.readInt()) == MAGIC;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static int align (long position) {
+        return (int) ((8 - (position & 7)) & 7);
+    }
+
+    /**
+     * Writes the sections of a model file sequentially.
+     */
+    public static class Writer {
+
+        private final FileOutputStream stream;
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final boolean sparse;
+        private long position;
+
+        public Writer (File file, String model) throws IOException {
+            this(file, model, DENSE);
+        }
+
+        /**
+         * Create a model file and write its header.
+         *
+         * @param file the file to write to;
+         * @param model the kind of model, e.g. LDA;
+         * @param format the encoding of the count matrices, DENSE or SPARSE;
+         * @throws IOException
+         */
+        public Writer (File file, String model, String format) throws IOException {
+            if (!format.equals(DENSE) && !format.equals(SPARSE)) {
+                throw new IllegalArgumentException("Unknown model format " + format + ".");
+            }
+            sparse = format.equals(SPARSE);
+            stream = new FileOutputStream(file);
+            channel = stream.getChannel();
+            buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            putInt(MAGIC);
+            putInt(VERSION);
+            putString(model);
+        }
+
+        public void writeInt (String name, int value) throws IOException {
+            writeInts(name, new int[]{value});
+        }
+
+        public void writeBoolean (String name, boolean value) throws IOException {
+            writeInt(name, value ? 1 : 0);
+        }
+
+        public void writeDouble (String name, double value) throws IOException {
+            writeDoubles(name, new double[]{value});
+        }
+
+        public void writeInts (String name, int[] values) throws IOException {
+            section(name, INTS, 4L * values.length);
+            putInts(values);
+        }
+
+        public void writeDoubles (String name, double[] values) throws IOException {
+            section(name, DOUBLES, 8L * values.length);
+            for (double value : values) {
+                ensure(8);
+                buffer.putDouble(value);
+            }
+            position += 8L * values.length;
+        }
+
+        /**
+         * Write a rectangular count matrix, as a flat block of ints or sparse,
+         * depending on the format of the file.
+         *
+         * @param name the name of the section;
+         * @param matrix the matrix to write;
+         * @throws IOException
+         */
+        public void writeMatrix (String name, int[][] matrix) throws IOException {
+            int numColumns = matrix.length == 0 ? 0 : matrix[0].length;
+            for (int[] row : matrix) {
+                if (row.length != numColumns) {
+                    throw new IllegalArgumentException("Matrix " + name + " is not rectangular.");
+                }
+            }
+            if (sparse) {
+                writeSparseMatrix(name, matrix, numColumns);
+                return;
+            }
+            section(name, MATRIX, 8 + 4L * matrix.length * numColumns);
+            putInt(matrix.length);
+            putInt(numColumns);
+            for (int[] row : matrix) {
+                putInts(row);
+            }
+        }
+
+        private void writeSparseMatrix (String name, int[][] matrix, int numColumns) throws IOException {
+            long length = varintSize(matrix.length) + varintSize(numColumns);
+            for (int[] row : matrix) {
+                int size = 0, previous = 0;
+                for (int column = 0; column < numColumns; column++) {
+                    if (row[column] != 0) {
+                        length += varintSize(column - previous) + varintSize(row[column]);
+                        previous = column;
+                        size++;
+                    }
+                }
+                length += varintSize(size);
+            }
+            section(name, SPARSE_MATRIX, length);
+            putVarint(matrix.length);
+            putVarint(numColumns);
+            for (int[] row : matrix) {
+                int size = 0;
+                for (int column = 0; column < numColumns; column++) {
+                    if (row[column] != 0) { size++; }
+                }
+                putVarint(size);
+                int previous = 0;
+                for (int column = 0; column < numColumns; column++) {
+                    if (row[column] != 0) {
+                        putVarint(column - previous);
+                        putVarint(row[column]);
+                        previous = column;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Write the items of an index, in order of their ids.
+         *
+         * @param name the name of the section;
+         * @param index the index to write;
+         * @throws IOException
+         */
+        public void writeIndex (String name, Index index) throws IOException {
+            byte[][] items = new byte[index.size()][];
+            long length = 4;
+            for (int i = 0; i < items.length; i++) {
+                items[i] = index.getItem(i).getBytes(UTF8);
+                length += 4 + items[i].length;
+            }
+            section(name, STRINGS, length);
+            putInt(items.length);
+            for (byte[] item : items) {
+                putBytes(item);
+            }
+        }
+
+        /**
+         * Write an object, such as the state of a random number generator, with
+         * object serialization.
+         *
+         * @param name the name of the section;
+         * @param object the object to write;
+         * @throws IOException
+         */
+        public void writeObject (String name, Serializable object) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(object);
+            out.close();
+            byte[] data = bytes.toByteArray();
+            section(name, BYTES, data.length);
+            putRaw(data);
+        }
+
+        public void close () throws IOException {
+            try {
+                flush();
+            } finally {
+                stream.close();
+            }
+        }
+
+        private void section (String name, int kind, long length) throws IOException {
+            putString(name);
+            putInt(kind);
+            ensure(8);
+            buffer.putLong(length);
+            position += 8;
+            int padding = align(position);
+            ensure(padding);
+            for (int i = 0; i < padding; i++) {
+                buffer.put((byte) 0);
+            }
+            position += padding;
+        }
+
+        private void putInt (int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+            position += 4;
+        }
+
+        private void putInts (int[] values) throws IOException {
+            int offset = 0;
+            while (offset < values.length) {
+                ensure(4);
+                int length = Math.min(buffer.remaining() / 4, values.length - offset);
+                buffer.asIntBuffer().put(values, offset, length);
+                buffer.position(buffer.position() + 4 * length);
+                offset += length;
+            }
+            position += 4L * values.length;
+        }
+
+        private void putVarint (int value) throws IOException {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+                position++;
+            }
+            buffer.put((byte) value);
+            position++;
+        }
+
+        private int varintSize (int value) {
+            int size = 1;
+            while ((value & ~0x7F) != 0) {
+                value >>>= 7;
+                size++;
+            }
+            return size;
+        }
+
+        private void putString (String value) throws IOException {
+            putBytes(value.getBytes(UTF8));
+        }
+
+        private void putBytes (byte[] bytes) throws IOException {
+            putInt(bytes.length);
+            putRaw(bytes);
+        }
+
+        private void putRaw (byte[] bytes) throws IOException {
+            int offset = 0;
+            while (offset < bytes.length) {
+                ensure(1);
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+            position += bytes.length;
+        }
+
+        private void ensure (int size) throws IOException {
+            if (buffer.remaining() < size) {
+                flush();
+            }
+        }
+
+        private void flush () throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Reads the sections of a model file through memory mappings of the file.
+     */
+    public static class Reader {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final int version;
+        private final String model;
+        private final HashMap<String, long[]> sections = new HashMap<String, long[]>();
+
+        /**
+         * Open a model file and read its table of sections.
+         *
+         * @param file the file to read;
+         * @param model the kind of model the file should hold, e.g. LDA;
+         * @throws IOException
+         */
+        public Reader (File file, String model) throws IOException {
+            this.file = new RandomAccessFile(file, "r");
+            this.channel = this.file.getChannel();
+            try {
+                long position = 0;
+                ByteBuffer header = read(position, 12);
+                if (header.getInt() != MAGIC) {
+                    throw new IOException(file + " is not a model file.");
+                }
+                version = header.getInt();
+                if (version > VERSION) {
+                    throw new IOException("Unsupported model file version " + version + " in " + file + ".");
+                }
+                int length = header.getInt();
+                this.model = new String(read(12, length).array(), UTF8);
+                if (!this.model.equals(model)) {
+                    throw new IOException(file + " holds a " + this.model + " model, not a " + model + " model.");
+                }
+                position = 12 + length;
+                long size = channel.size();
+                while (position < size) {
+                    length = read(position, 4).getInt();
+                    String name = new String(read(position + 4, length).array(), UTF8);
+                    ByteBuffer section = read(position + 4 + length, 12);
+                    int kind = section.getInt();
+                    long sectionLength = section.getLong();
+                    position += 16 + length;
+                    position += align(position);
+                    sections.put(name, new long[]{kind, position, sectionLength});
+                    position += sectionLength;
+                }
+            } catch (IOException e) {
+                this.file.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the version of the format the file was written in;
+         */
+        public int version () { return version; }
+
+        public boolean has (String name) { return sections.containsKey(name); }
+
+        public int readInt (String name) throws IOException {
+            return readInts(name)[0];
+        }
+
+        public boolean readBoolean (String name) throws IOException {
+            return readInt(name) != 0;
+        }
+
+        public double readDouble (String name) throws IOException {
+            return readDoubles(name)[0];
+        }
+
+        public int[] readInts (String name) throws IOException {
+            long[] section = section(name, INTS);
+            int[] values = new int[(int) (section[2] / 4)];
+            map(section[1], section[2]).asIntBuffer().get(values);
+            return values;
+        }
+
+        public double[] readDoubles (String name) throws IOException {
+            long[] section = section(name, DOUBLES);
+            double[] values = new double[(int) (section[2] / 8)];
+            map(section[1], section[2]).asDoubleBuffer().get(values);
+            return values;
+        }
+
+        /**
+         * Read a count matrix into a dense matrix. A dense block is mapped in windows
+         * of whole rows, which are copied into the rows of the matrix with bulk copies.
+         *
+         * @param name the name of the section;
+         * @return the matrix;
+         * @throws IOException
+         */
+        public int[][] readMatrix (String name) throws IOException {
+            if (section(name)[0] == SPARSE_MATRIX) {
+                return readSparseMatrix(name).toDense();
+            }
+            long[] section = section(name, MATRIX);
+            ByteBuffer shape = map(section[1], 8);
+            int numRows = shape.getInt();
+            int numColumns = shape.getInt();
+            int[][] matrix = new int[numRows][numColumns];
+            long rowSize = 4L * numColumns;
+            int rowsPerWindow = (int) Math.max(1, WINDOW_SIZE / Math.max(rowSize, 1));
+            for (int start = 0; start < numRows && numColumns > 0; start += rowsPerWindow) {
+                int end = (int) Math.min(numRows, (long) start + rowsPerWindow);
+                IntBuffer window = map(section[1] + 8 + start * rowSize, (end - start) * rowSize).asIntBuffer();
+                for (int row = start; row < end; row++) {
+                    window.get(matrix[row]);
+                }
+            }
+            return matrix;
+        }
+
+        /**
+         * Read a count matrix into a sparse matrix, without materializing
+         * the dense matrix if the section is stored sparse.
+         *
+         * @param name the name of the section;
+         * @return the matrix;
+         * @throws IOException
+         */
+        public SparseMatrix readSparseMatrix (String name) throws IOException {
+            if (section(name)[0] == MATRIX) {
+                int[][] matrix = readMatrix(name);
+                return new SparseMatrix(matrix, matrix.length == 0 ? 0 : matrix[0].length);
+            }
+            long[] section = section(name, SPARSE_MATRIX);
+            MappedInput in = new MappedInput(channel, section[1], section[1] + section[2]);
+            int numRows = in.readVarint();
+            int numColumns = in.readVarint();
+            int[][] columns = new int[numRows][];
+            int[][] values = new int[numRows][];
+            for (int row = 0; row < numRows; row++) {
+                int size = in.readVarint();
+                columns[row] = new int[size];
+                values[row] = new int[size];
+                int column = 0;
+                for (int i = 0; i < size; i++) {
+                    column += in.readVarint();
+                    columns[row][i] = column;
+                    values[row][i] = in.readVarint();
+                }
+            }
+            return new SparseMatrix(numColumns, columns, values);
+        }
+
+        public Index readIndex (String name) throws IOException {
+            long[] section = section(name, STRINGS);
+            ByteBuffer data = map(section[1], section[2]);
+            int size = data.getInt();
+            Index index = new Index();
+            byte[] bytes = new byte[64];
+            for (int i = 0; i < size; i++) {
+                int length = data.getInt();
+                if (length > bytes.length) {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                }
+                data.get(bytes, 0, length);
+                index.put(new String(bytes, 0, length, UTF8));
+            }
+            return index;
+        }
+
+        public Object readObject (String name) throws IOException, ClassNotFoundException {
+            long[] section = section(name, BYTES);
+            byte[] bytes = new byte[(int) section[2]];
+            map(section[1], section[2]).get(bytes);
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+            try {
+                return in.readObject();
+            } finally {
+                in.close();
+            }
+        }
+
+        public void close () throws IOException {
+            file.close();
+        }
+
+        private long[] section (String name) throws IOException {
+            long[] section = sections.get(name);
+            if (section == null) {
+                throw new IOException("Model file has no section " + name + ".");
+            }
+            return section;
+        }
+
+        private long[] section (String name, int kind) throws IOException {
+            long[] section = section(name);
+            if (section[0] != kind) {
+                throw new IOException("Section " + name + " of the model file has an unexpected kind.");
+            }
+            return section;
+        }
+
+        private ByteBuffer map (long position, long size) throws IOException {
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Section of " + size + " bytes is too large to map at once.");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+
+        private ByteBuffer read (long position, int size) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of model file.");
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * Keeps track, for each row of a count matrix, of the columns that currently
+ * hold a non-zero count. Sparse samplers use it to iterate over, for example,
+ * the topics a word has been assigned to, without scanning all topics.
+ * The order of the columns within a row is not defined.
+ */
+public class NonZeroColumns {
+
+    private final int[][] columns;
+    private final int[] sizes;
+    private final int numColumns;
+
+    public NonZeroColumns (int numRows, int numColumns) {
+        this.numColumns = numColumns;
+        this.columns = new int[numRows][];
+        this.sizes = new int[numRows];
+    }
+
+    /**
+     * Build the non-zero columns of an existing dense count matrix.
+     *
+     * @param counts the count matrix (rows by columns);
+     * @param numColumns the number of columns of the matrix;
+     */
+    public NonZeroColumns (int[][] counts, int numColumns) {
+        this(counts.length, numColumns);
+        for (int row = 0; row < counts.length; row++) {
+            for (int column = 0; column < numColumns; column++) {
+                if (counts[row][column] != 0) {
+                    add(row, column);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bring all rows up to date with a count matrix that was replaced as a whole,
+     * reusing the storage of the rows.
+     *
+     * @param counts the count matrix (rows by columns);
+     */
+    public void rebuild (int[][] counts) {
+        for (int row = 0; row < counts.length; row++) {
+            sizes[row] = 0;
+            for (int column = 0; column < numColumns; column++) {
+                if (counts[row][column] != 0) {
+                    add(row, column);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the number of non-zero columns of a row.
+     *
+     * @param row the row to query;
+     * @return the number of non-zero columns;
+     */
+    public int size (int row) { return sizes[row]; }
+
+    /**
+     * Return the backing array of a row. Only the first size(row) entries are valid.
+     *
+     * @param row the row to query;
+     * @return the non-zero columns of this row;
+     */
+    public int[] columns (int row) {
+        return columns[row];
+    }
+
+    /**
+     * Register that a column of a row became non-zero.
+     *
+     * @param row the row to update;
+     * @param column the column that became non-zero;
+     */
+    public void add (int row, int column) {
+        int[] current = columns[row];
+        if (current == null) {
+            current = new int[Math.min(4, numColumns)];
+            columns[row] = current;
+        } else if (sizes[row] == current.length) {
+            current = Arrays.copyOf(current, Math.min(current.length * 2, numColumns));
+            columns[row] = current;
+        }
+        current[sizes[row]++] = column;
+    }
+
+    /**
+     * Register that a column of a row dropped to zero.
+     *
+     * @param row the row to update;
+     * @param column the column that became zero;
+     */
+    public void remove (int row, int column) {
+        int[] current = columns[row];
+        int last = sizes[row] - 1;
+        for (int i = last; i >= 0; i--) {
+            if (current[i] == column) {
+                current[i] = current[last];
+                sizes[row] = last;
+                return;
+            }
+        }
+        throw new IllegalStateException("Column " + column + " is not registered for row " + row + ".");
+    }
+}
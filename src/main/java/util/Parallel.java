@@ -0,0 +1,434 @@
+package util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Helper functions shared by the multi-threaded samplers: partitioning a corpus
+ * over workers, running a batch of tasks, merging the count matrices of
+ * the workers back into the global counts (AD-LDA; Newman et al., 2009) and
+ * formatting output on several threads.
+ */
+public class Parallel {
+
+    public static Logger logger = Logger.getLogger(Parallel.class.getName());
+
+    // the number of documents a worker claims at once in forEachDocument
+    private static final int BATCH_SIZE = 64;
+
+    /**
+     * Work to be done on a single document, used by forEachDocument.
+     */
+    public interface DocumentTask {
+
+        /**
+         * Process a single document.
+         *
+         * @param document the document to process;
+         * @param random the random number generator reserved for this document;
+         */
+        void process (Document document, Randoms random);
+    }
+
+    /**
+     * A worker of train: a copy of a model with its own count matrices, which
+     * samples a block of documents against its own counts.
+     */
+    public interface Worker {
+
+        /**
+         * @return the count matrices of the worker, in the order of the global matrices;
+         */
+        int[][][] matrices ();
+
+        /**
+         * @return the count vectors of the worker, in the order of the global vectors;
+         */
+        int[][] vectors ();
+
+        /**
+         * Sample new assignments for a block of documents against the counts of the worker.
+         *
+         * @param documents the documents to sample;
+         */
+        void sample (List<Document> documents);
+    }
+
+    /**
+     * Called by train after each iteration, once the counts of the workers have been merged.
+     */
+    public interface IterationListener {
+
+        /**
+         * @param iteration the iteration that has just finished;
+         * @param pool the pool of the workers, which may be used to compute e.g. the log-likelihood;
+         * @return true if training should stop;
+         */
+        boolean finished (int iteration, ExecutorService pool);
+    }
+
+    /**
+     * Formats one block of an output file, e.g. the words of one topic. A formatter
+     * is used by one thread at a time, so it can keep scratch space between blocks.
+     */
+    public interface BlockFormatter {
+
+        /**
+         * Format a single block.
+         *
+         * @param block the number of the block;
+         * @param output the buffer to append the text of the block to;
+         */
+        void format (int block, TextBuffer output);
+    }
+
+    /**
+     * Split a corpus into contiguous blocks of documents with roughly the same
+     * number of tokens.
+     *
+     * @param corpus the corpus to split;
+     * @param numParts the number of blocks;
+     * @return a list of numParts (possibly empty) lists of documents;
+     */
+    public static List<List<Document>> partition (Corpus corpus, int numParts) {
+        long numTokens = 0;
+        for (Document document : corpus) {
+            numTokens += document.size();
+        }
+        List<List<Document>> parts = new ArrayList<List<Document>>(numParts);
+        for (int part = 0; part < numParts; part++) {
+            parts.add(new ArrayList<Document>());
+        }
+        long seen = 0;
+        for (Document document : corpus) {
+            int part = (int) Math.min(numParts - 1, seen * numParts / Math.max(numTokens, 1));
+            parts.get(part).add(document);
+            seen += document.size();
+        }
+        return parts;
+    }
+
+    /**
+     * Run a sampler on one thread per worker following AD-LDA (Newman et al., 2009).
+     * The corpus is split into one block of documents per worker. In each iteration
+     * every worker copies the global counts, samples its block against its copy, and
+     * then the changes of all workers are merged into the global counts.
+     *
+     * @param corpus the corpus to sample;
+     * @param first the first iteration to run;
+     * @param iterations the last iteration to run;
+     * @param matrices the global count matrices, which are updated in place;
+     * @param vectors the global count vectors, which are updated in place;
+     * @param workers the workers, one for each thread;
+     * @param listener called after each iteration;
+     */
+    public static void train (Corpus corpus, int first, int iterations, final int[][][] matrices, final int[][] vectors,
+                              List<? extends Worker> workers, IterationListener listener) {
+        int numThreads = workers.size();
+        List<List<Document>> partitions = partition(corpus, numThreads);
+        int[][][][] localMatrices = new int[matrices.length][numThreads][][];
+        int[][][] localVectors = new int[vectors.length][numThreads][];
+        for (int thread = 0; thread < numThreads; thread++) {
+            int[][][] workerMatrices = workers.get(thread).matrices();
+            int[][] workerVectors = workers.get(thread).vectors();
+            for (int i = 0; i < matrices.length; i++) {
+                localMatrices[i][thread] = workerMatrices[i];
+            }
+            for (int i = 0; i < vectors.length; i++) {
+                localVectors[i][thread] = workerVectors[i];
+            }
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            for (int iteration = first; iteration <= iterations; iteration++) {
+                logger.info("Sampling iteration " + iteration + " started.");
+                List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numThreads);
+                for (int thread = 0; thread < numThreads; thread++) {
+                    final Worker worker = workers.get(thread);
+                    final List<Document> documents = partitions.get(thread);
+                    tasks.add(new Callable<Void>() {
+                        public Void call () {
+                            int[][][] workerMatrices = worker.matrices();
+                            int[][] workerVectors = worker.vectors();
+                            for (int i = 0; i < matrices.length; i++) {
+                                copy(matrices[i], workerMatrices[i]);
+                            }
+                            for (int i = 0; i < vectors.length; i++) {
+                                System.arraycopy(vectors[i], 0, workerVectors[i], 0, vectors[i].length);
+                            }
+                            worker.sample(documents);
+                            return null;
+                        }
+                    });
+                }
+                invokeAll(pool, tasks);
+                for (int i = 0; i < matrices.length; i++) {
+                    merge(pool, matrices[i], localMatrices[i], numThreads);
+                }
+                for (int i = 0; i < vectors.length; i++) {
+                    merge(vectors[i], localVectors[i]);
+                }
+                if (listener.finished(iteration, pool)) {
+                    break;
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Run all tasks on the pool and wait for them to finish. Exceptions thrown
+     * by a task are rethrown in the calling thread.
+     *
+     * @param pool the pool to run the tasks on;
+     * @param tasks the tasks to run;
+     * @return the results of the tasks, in the order of the tasks;
+     */
+    public static <T> List<T> invokeAll (ExecutorService pool, List<? extends Callable<T>> tasks) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        List<Future<T>> futures;
+        try {
+            futures = pool.invokeAll(tasks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for workers.", e);
+        }
+        for (Future<T> future : futures) {
+            results.add(get(future));
+        }
+        return results;
+    }
+
+    /**
+     * Wait for the result of a task. Exceptions thrown by the task are rethrown
+     * in the calling thread.
+     *
+     * @param future the pending result of the task;
+     * @return the result of the task;
+     */
+    private static <T> T get (Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for workers.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException("Worker failed.", e.getCause());
+        }
+    }
+
+    /**
+     * Format numBlocks blocks of text and write them in order. With more than one
+     * formatter the blocks are formatted concurrently, one thread per formatter,
+     * while the calling thread writes the finished blocks in order. At most two
+     * blocks per thread are held in memory at any time, so the memory needed does
+     * not grow with the size of the output.
+     *
+     * @param out the writer to write the blocks to;
+     * @param numBlocks the number of blocks;
+     * @param formatters the formatters, one for each thread to use;
+     * @throws IOException
+     */
+    public static void writeBlocks (Writer out, int numBlocks, List<? extends BlockFormatter> formatters) throws IOException {
+        if (formatters.isEmpty()) {
+            throw new IllegalArgumentException("At least one formatter is needed.");
+        }
+        if (formatters.size() == 1) {
+            TextBuffer buffer = new TextBuffer();
+            for (int block = 0; block < numBlocks; block++) {
+                buffer.clear();
+                formatters.get(0).format(block, buffer);
+                buffer.writeTo(out);
+            }
+            return;
+        }
+        final BlockingQueue<BlockFormatter> idle = new ArrayBlockingQueue<BlockFormatter>(formatters.size(), false, formatters);
+        final ConcurrentLinkedQueue<TextBuffer> free = new ConcurrentLinkedQueue<TextBuffer>();
+        int window = 2 * formatters.size();
+        LinkedList<Future<TextBuffer>> pending = new LinkedList<Future<TextBuffer>>();
+        ExecutorService pool = Executors.newFixedThreadPool(formatters.size());
+        try {
+            int next = 0;
+            for (int block = 0; block < numBlocks; block++) {
+                for (; next < numBlocks && pending.size() < window; next++) {
+                    final int current = next;
+                    pending.add(pool.submit(new Callable<TextBuffer>() {
+                        public TextBuffer call () throws InterruptedException {
+                            TextBuffer buffer = free.poll();
+                            if (buffer == null) {
+                                buffer = new TextBuffer();
+                            }
+                            buffer.clear();
+                            BlockFormatter formatter = idle.take();
+                            try {
+                                formatter.format(current, buffer);
+                            } finally {
+                                idle.add(formatter);
+                            }
+                            return buffer;
+                        }
+                    }));
+                }
+                TextBuffer buffer = get(pending.removeFirst());
+                buffer.writeTo(out);
+                free.add(buffer);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Copy the content of a count matrix into another matrix of the same shape.
+     *
+     * @param source the matrix to copy from;
+     * @param target the matrix to copy to;
+     */
+    public static void copy (int[][] source, int[][] target) {
+        for (int row = 0; row < source.length; row++) {
+            System.arraycopy(source[row], 0, target[row], 0, source[row].length);
+        }
+    }
+
+    /**
+     * Return a deep copy of a count matrix.
+     *
+     * @param source the matrix to copy;
+     * @return the copy;
+     */
+    public static int[][] copyOf (int[][] source) {
+        int[][] target = new int[source.length][];
+        for (int row = 0; row < source.length; row++) {
+            target[row] = source[row].clone();
+        }
+        return target;
+    }
+
+    /**
+     * Merge the local counts of all workers into the global counts. Each worker started
+     * from a copy of the global counts, so its delta is local - global.
+     *
+     * @param global the global counts, which are updated in place;
+     * @param locals the local counts of each worker;
+     */
+    public static void merge (int[] global, int[][] locals) {
+        for (int i = 0; i < global.length; i++) {
+            int value = global[i];
+            for (int[] local : locals) {
+                value += local[i] - global[i];
+            }
+            global[i] = value;
+        }
+    }
+
+    /**
+     * Merge the local count matrices of all workers into the global counts,
+     * distributing the rows over the pool.
+     *
+     * @param pool the pool to run the merge on;
+     * @param global the global count matrix, which is updated in place;
+     * @param locals the local count matrices of each worker;
+     * @param numParts the number of blocks of rows to merge concurrently;
+     */
+    public static void merge (ExecutorService pool, final int[][] global, final int[][][] locals, int numParts) {
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(numParts);
+        for (int part = 0; part < numParts; part++) {
+            final int start = (int) ((long) global.length * part / numParts);
+            final int end = (int) ((long) global.length * (part + 1) / numParts);
+            tasks.add(new Callable<Void>() {
+                public Void call () {
+                    int[][] rows = new int[locals.length][];
+                    for (int row = start; row < end; row++) {
+                        for (int worker = 0; worker < locals.length; worker++) {
+                            rows[worker] = locals[worker][row];
+                        }
+                        merge(global[row], rows);
+                    }
+                    return null;
+                }
+            });
+        }
+        invokeAll(pool, tasks);
+    }
+
+    /**
+     * Process all documents of a corpus independently on numThreads threads. Workers
+     * claim small batches of documents in input order, so long and short documents
+     * are balanced over the threads. Each document gets its own random number generator,
+     * seeded from the seed and the position of the document in the corpus, which makes
+     * the results independent of the number of threads and of the scheduling. With a
+     * single thread the documents are processed in the calling thread.
+     *
+     * @param corpus the corpus to process;
+     * @param numThreads the number of threads to use;
+     * @param seed the seed from which the per-document seeds are derived;
+     * @param task the work to do for each document;
+     */
+    public static void forEachDocument (final Corpus corpus, int numThreads, final long seed, final DocumentTask task) {
+        numThreads = Math.max(numThreads, 1);
+        final AtomicInteger next = new AtomicInteger(0);
+        List<Callable<Void>> workers = new ArrayList<Callable<Void>>(numThreads);
+        for (int thread = 0; thread < numThreads; thread++) {
+            workers.add(new Callable<Void>() {
+                public Void call () {
+                    for (int start = next.getAndAdd(BATCH_SIZE); start < corpus.size(); start = next.getAndAdd(BATCH_SIZE)) {
+                        int end = Math.min(start + BATCH_SIZE, corpus.size());
+                        for (int index = start; index < end; index++) {
+                            task.process(corpus.get(index), new Randoms(documentSeed(seed, index)));
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        if (numThreads == 1) {
+            try {
+                workers.get(0).call();
+            } catch (Exception e) {
+                throw e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException("Worker failed.", e);
+            }
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        try {
+            invokeAll(pool, workers);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Derive a well mixed seed for a document from a base seed and the
+     * position of the document (SplitMix64 finalizer).
+     *
+     * @param seed the base seed;
+     * @param index the position of the document;
+     * @return the seed for the document;
+     */
+    static long documentSeed (long seed, long index) {
+        long z = seed + (index + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
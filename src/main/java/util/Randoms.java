@@ -1,6 +1,11 @@
 package util;
 
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.Random;
 
@@ -23,4 +28,21 @@ public class Randoms extends Random {
     public int choice (ArrayList<Integer> items) {
         return items.get(nextInt(items.size()));
     }
+
+    /**
+     * @return a copy of this generator, which produces the same numbers from here on;
+     */
+    public synchronized Randoms copy () {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(this);
+            out.close();
+            return (Randoms) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not copy the random number generator.", e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Could not copy the random number generator.", e);
+        }
+    }
 }
@@ -0,0 +1,127 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * A small open-addressing hash map from (row, column) pairs to counts. It is
+ * meant for count matrices that are logically large (e.g. words by topics), but
+ * of which only a handful of cells is touched, such as the counts of a single
+ * document during inference. Memory and time scale with the number of touched
+ * cells rather than with the shape of the matrix.
+ */
+public class SparseCounts {
+
+    private static final long EMPTY = -1L;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+
+    public SparseCounts () {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize the number of cells expected to be touched;
+     */
+    public SparseCounts (int expectedSize) {
+        int capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    private void allocate (int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private static long key (int row, int column) {
+        return ((long) row << 32) | (column & 0xFFFFFFFFL);
+    }
+
+    private int slot (long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (keys[slot] != EMPTY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Return the count of a cell.
+     *
+     * @param row the row of the cell;
+     * @param column the column of the cell;
+     * @return the count, 0 if the cell was never touched;
+     */
+    public int get (int row, int column) {
+        int slot = slot(key(row, column));
+        return keys[slot] == EMPTY ? 0 : values[slot];
+    }
+
+    /**
+     * Add a value to the count of a cell.
+     *
+     * @param row the row of the cell;
+     * @param column the column of the cell;
+     * @param delta the value to add;
+     */
+    public void add (int row, int column, int delta) {
+        long key = key(row, column);
+        int slot = slot(key);
+        if (keys[slot] == EMPTY) {
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+                slot = slot(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        values[slot] += delta;
+    }
+
+    public void increment (int row, int column) {
+        add(row, column, 1);
+    }
+
+    public void decrement (int row, int column) {
+        add(row, column, -1);
+    }
+
+    /**
+     * Reset all counts to zero, keeping the allocated space.
+     */
+    public void clear () {
+        if (size > 0) {
+            Arrays.fill(keys, EMPTY);
+            Arrays.fill(values, 0);
+            size = 0;
+        }
+    }
+
+    /**
+     * @return the number of cells that have been touched since the last clear;
+     */
+    public int size () { return size; }
+
+    private void grow () {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(oldKeys.length * 2);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                size++;
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package util;
+
+/**
+ * An immutable sparse count matrix that stores, for each row, only the columns
+ * with a non-zero count, in ascending order, next to their counts. It is the
+ * in-memory counterpart of the sparse sections of a ModelFile, for consumers
+ * that do not need the dense int[][] counts of a model.
+ */
+public class SparseMatrix {
+
+    private final int numColumns;
+    private final int[][] columns;
+    private final int[][] values;
+
+    /**
+     * @param numColumns the number of columns of the matrix;
+     * @param columns the non-zero columns of each row, in ascending order;
+     * @param values the counts of the non-zero columns of each row;
+     */
+    public SparseMatrix (int numColumns, int[][] columns, int[][] values) {
+        this.numColumns = numColumns;
+        this.columns = columns;
+        this.values = values;
+    }
+
+    /**
+     * Build a sparse matrix from a dense count matrix.
+     *
+     * @param counts the dense count matrix;
+     * @param numColumns the number of columns of the matrix;
+     */
+    public SparseMatrix (int[][] counts, int numColumns) {
+        this(numColumns, new int[counts.length][], new int[counts.length][]);
+        for (int row = 0; row < counts.length; row++) {
+            int size = 0;
+            for (int column = 0; column < numColumns; column++) {
+                if (counts[row][column] != 0) { size++; }
+            }
+            columns[row] = new int[size];
+            values[row] = new int[size];
+            size = 0;
+            for (int column = 0; column < numColumns; column++) {
+                if (counts[row][column] != 0) {
+                    columns[row][size] = column;
+                    values[row][size++] = counts[row][column];
+                }
+            }
+        }
+    }
+
+    public int numRows () { return columns.length; }
+    public int numColumns () { return numColumns; }
+
+    /**
+     * @param row the row to query;
+     * @return the number of non-zero columns of the row;
+     */
+    public int size (int row) { return columns[row].length; }
+
+    /**
+     * @param row the row to query;
+     * @return the non-zero columns of the row, in ascending order;
+     */
+    public int[] columns (int row) { return columns[row]; }
+
+    /**
+     * @param row the row to query;
+     * @return the counts of the non-zero columns of the row;
+     */
+    public int[] values (int row) { return values[row]; }
+
+    /**
+     * Return the count of a cell.
+     *
+     * @param row the row of the cell;
+     * @param column the column of the cell;
+     * @return the count of the cell;
+     */
+    public int get (int row, int column) {
+        int[] current = columns[row];
+        int low = 0, high = current.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (current[middle] < column) {
+                low = middle + 1;
+            } else if (current[middle] > column) {
+                high = middle - 1;
+            } else {
+                return values[row][middle];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the matrix as a dense count matrix;
+     */
+    public int[][] toDense () {
+        int[][] counts = new int[columns.length][numColumns];
+        for (int row = 0; row < columns.length; row++) {
+            for (int i = 0; i < columns[row].length; i++) {
+                counts[row][columns[row][i]] = values[row][i];
+            }
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,139 @@
+package util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+
+/**
+ * Decides how many sweeps to run over a document during inference. Instead of a
+ * fixed number of sweeps, a document is sampled until it has converged: until the
+ * fraction of its tokens that changed topic in the last sweep, or the L1 distance
+ * between its topic proportions before and after the sweep, drops below a tolerance.
+ * Every document gets at least minSweeps and at most maxSweeps sweeps. The number
+ * of sweeps used is collected in a histogram, which may be shared by several threads.
+ */
+public class SweepSchedule {
+
+    private final int minSweeps;
+    private final int maxSweeps;
+    private final double tolerance;
+    private final AtomicLongArray histogram;
+
+    /**
+     * @param minSweeps the minimum number of sweeps per document;
+     * @param maxSweeps the maximum number of sweeps per document;
+     * @param tolerance the change below which a document counts as converged;
+     */
+    public SweepSchedule (int minSweeps, int maxSweeps, double tolerance) {
+        if (minSweeps < 1 || maxSweeps < minSweeps) {
+            throw new IllegalArgumentException("Invalid sweep bounds: " + minSweeps + " to " + maxSweeps);
+        }
+        this.minSweeps = minSweeps;
+        this.maxSweeps = maxSweeps;
+        this.tolerance = tolerance;
+        this.histogram = new AtomicLongArray(maxSweeps + 1);
+    }
+
+    /**
+     * Start following the sweeps over a document. The topics of the document must
+     * have been initialized.
+     *
+     * @param document the document;
+     * @param numTopics the number of topics of the model;
+     * @param numWords the number of words of the model, later words are ignored;
+     * @return the tracker for the document;
+     */
+    public Tracker track (Document document, int numTopics, int numWords) {
+        return new Tracker(document, numTopics, numWords);
+    }
+
+    /**
+     * @return the number of documents that used each number of sweeps;
+     */
+    public long[] histogram () {
+        long[] counts = new long[histogram.length()];
+        for (int sweeps = 0; sweeps < counts.length; sweeps++) {
+            counts[sweeps] = histogram.get(sweeps);
+        }
+        return counts;
+    }
+
+    /**
+     * Log the histogram of the number of sweeps per document.
+     *
+     * @param logger the logger to write to;
+     */
+    public void log (Logger logger) {
+        long[] counts = histogram();
+        long documents = 0, sweeps = 0;
+        StringBuilder output = new StringBuilder();
+        for (int used = 0; used < counts.length; used++) {
+            if (counts[used] > 0) {
+                output.append(" ").append(used).append(":").append(counts[used]);
+                documents += counts[used];
+                sweeps += used * counts[used];
+            }
+        }
+        logger.info("Sweeps per document (sweeps:documents):" + output
+                + ", mean " + (documents > 0 ? (double) sweeps / documents : 0.0) + ".");
+    }
+
+    /**
+     * Follows the sweeps over a single document.
+     */
+    public class Tracker {
+
+        private final Document document;
+        private final int numWords;
+        private int[] previous;
+        private int[] current;
+        private int numTokens;
+        private int sweeps = 0;
+
+        private Tracker (Document document, int numTopics, int numWords) {
+            this.document = document;
+            this.numWords = numWords;
+            previous = new int[numTopics];
+            current = new int[numTopics];
+            numTokens = countTopics(previous);
+        }
+
+        /**
+         * Report a sweep over the document.
+         *
+         * @param changes the number of tokens that changed topic in the sweep;
+         * @return true if the document needs another sweep;
+         */
+        public boolean next (int changes) {
+            sweeps++;
+            countTopics(current);
+            int distance = 0;
+            for (int topic = 0; topic < current.length; topic++) {
+                distance += Math.abs(current[topic] - previous[topic]);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+            boolean converged = numTokens == 0
+                    || (double) changes / numTokens < tolerance
+                    || (double) distance / numTokens < tolerance;
+            if (sweeps >= maxSweeps || (converged && sweeps >= minSweeps)) {
+                histogram.incrementAndGet(sweeps);
+                return false;
+            }
+            return true;
+        }
+
+        private int countTopics (int[] counts) {
+            Arrays.fill(counts, 0);
+            int tokens = 0;
+            for (int position = 0; position < document.size(); position++) {
+                if (document.getToken(position) < numWords) {
+                    counts[document.getTopic(position)]++;
+                    tokens++;
+                }
+            }
+            return tokens;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * A reusable character buffer for formatting output text. Numbers are formatted
+ * straight into the buffer, without the temporary strings of StringBuilder.append
+ * and String concatenation, but with the same text: ints and longs as decimal digits
+ * and doubles as Double.toString would format them.
+ */
+public class TextBuffer {
+
+    // integral doubles below this magnitude are written as digits followed by ".0"
+    private static final double PLAIN_LIMIT = 1e7;
+
+    private char[] chars;
+    private int length;
+
+    public TextBuffer () {
+        this(1 << 12);
+    }
+
+    /**
+     * @param capacity the initial capacity of the buffer in characters;
+     */
+    public TextBuffer (int capacity) {
+        chars = new char[Math.max(capacity, 16)];
+    }
+
+    public int length () { return length; }
+
+    public void clear () {
+        length = 0;
+    }
+
+    public TextBuffer append (char value) {
+        ensureCapacity(length + 1);
+        chars[length++] = value;
+        return this;
+    }
+
+    public TextBuffer append (String value) {
+        int size = value.length();
+        ensureCapacity(length + size);
+        value.getChars(0, size, chars, length);
+        length += size;
+        return this;
+    }
+
+    public TextBuffer append (int value) {
+        return append((long) value);
+    }
+
+    public TextBuffer append (long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value));
+        }
+        ensureCapacity(length + 20);
+        if (value < 0) {
+            chars[length++] = '-';
+            value = -value;
+        }
+        int end = length + digits(value);
+        for (int position = end - 1; position >= length; position--) {
+            chars[position] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length = end;
+        return this;
+    }
+
+    /**
+     * Append a double as Double.toString would format it. Integral values, such as
+     * the counts of a topic model, are formatted directly; other values fall back
+     * to Double.toString.
+     *
+     * @param value the value to append;
+     * @return this buffer;
+     */
+    public TextBuffer append (double value) {
+        if (value > -PLAIN_LIMIT && value < PLAIN_LIMIT && value == (long) value
+                && (value != 0 || Double.doubleToRawLongBits(value) == 0)) {
+            return append((long) value).append('.').append('0');
+        }
+        return append(Double.toString(value));
+    }
+
+    /**
+     * Write the content of the buffer.
+     *
+     * @param out the writer to write to;
+     * @throws IOException
+     */
+    public void writeTo (Writer out) throws IOException {
+        out.write(chars, 0, length);
+    }
+
+    @Override
+    public String toString () {
+        return new String(chars, 0, length);
+    }
+
+    private void ensureCapacity (int capacity) {
+        if (capacity > chars.length) {
+            char[] grown = new char[Math.max(capacity, chars.length * 2)];
+            System.arraycopy(chars, 0, grown, 0, length);
+            chars = grown;
+        }
+    }
+
+    private static int digits (long value) {
+        int digits = 1;
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+}
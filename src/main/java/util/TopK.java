@@ -0,0 +1,136 @@
+package util;
+
+/**
+ * Selects the k best (index, value) pairs from a stream of pairs, using a bounded
+ * min-heap over primitive arrays. Pairs are ranked as IDSorter ranks them: by
+ * value, highest first, and ties by index, highest first. Selecting the top k out
+ * of n pairs takes O(n log k) time and no allocations, and a TopK can be reused
+ * by calling clear.
+ */
+public class TopK {
+
+    private final int capacity;
+    private final int[] indices;
+    private final double[] values;
+    private int size;
+    private boolean sorted;
+
+    /**
+     * @param capacity the number of pairs to keep;
+     */
+    public TopK (int capacity) {
+        this.capacity = capacity;
+        this.indices = new int[capacity];
+        this.values = new double[capacity];
+    }
+
+    public void clear () {
+        size = 0;
+        sorted = false;
+    }
+
+    /**
+     * Offer a pair to the selection.
+     *
+     * @param index the index of the pair, e.g. a word id;
+     * @param value the value of the pair, e.g. a count;
+     */
+    public void add (int index, double value) {
+        if (sorted) {
+            throw new IllegalStateException("Call clear before adding to a sorted selection.");
+        }
+        if (size < capacity) {
+            indices[size] = index;
+            values[size] = value;
+            siftUp(size++);
+        } else if (capacity > 0 && isWorse(indices[0], values[0], index, value)) {
+            indices[0] = index;
+            values[0] = value;
+            siftDown(0, size);
+        }
+    }
+
+    /**
+     * @return the number of pairs selected so far;
+     */
+    public int size () { return size; }
+
+    /**
+     * Sort the selected pairs from best to worst, after which they can be
+     * retrieved by rank with index and value.
+     */
+    public void sort () {
+        // heap sort on the min-heap leaves the best pair at the front
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        sorted = true;
+    }
+
+    /**
+     * @param rank the rank of the pair, 0 being the best;
+     * @return the index of the pair at that rank;
+     */
+    public int index (int rank) {
+        checkSorted();
+        return indices[rank];
+    }
+
+    /**
+     * @param rank the rank of the pair, 0 being the best;
+     * @return the value of the pair at that rank;
+     */
+    public double value (int rank) {
+        checkSorted();
+        return values[rank];
+    }
+
+    private void checkSorted () {
+        if (!sorted) {
+            throw new IllegalStateException("Call sort before retrieving the selection.");
+        }
+    }
+
+    // true if pair a ranks below pair b
+    private static boolean isWorse (int indexA, double valueA, int indexB, double valueB) {
+        return valueA < valueB || (valueA == valueB && indexA < indexB);
+    }
+
+    private void siftUp (int position) {
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (!isWorse(indices[position], values[position], indices[parent], values[parent])) {
+                return;
+            }
+            swap(position, parent);
+            position = parent;
+        }
+    }
+
+    private void siftDown (int position, int end) {
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= end) {
+                return;
+            }
+            if (child + 1 < end && isWorse(indices[child + 1], values[child + 1], indices[child], values[child])) {
+                child++;
+            }
+            if (!isWorse(indices[child], values[child], indices[position], values[position])) {
+                return;
+            }
+            swap(position, child);
+            position = child;
+        }
+    }
+
+    private void swap (int a, int b) {
+        int index = indices[a];
+        indices[a] = indices[b];
+        indices[b] = index;
+        double value = values[a];
+        values[a] = values[b];
+        values[b] = value;
+    }
+}
@@ -0,0 +1,182 @@
+package topicmodels;
+
+import junit.framework.TestCase;
+import util.Corpus;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Checks that a steady-state sweep of each training sampler allocates nothing: all
+ * scratch space is kept in the sampler and reused between tokens and documents.
+ * Allocations are measured with ThreadMXBean.getThreadAllocatedBytes. Lazily grown
+ * buffers may allocate in an early sweep, so each sampler is warmed up first and
+ * the smallest allocation over a few sweeps must be zero.
+ */
+public class SamplerAllocationTest extends TestCase {
+
+    private static final int NUM_TOPICS = 20;
+    private static final int WARM_UP_SWEEPS = 20;
+    private static final int MEASURED_SWEEPS = 3;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    /**
+     * One sweep of a training sampler over all documents of the corpus.
+     */
+    private interface Sweep {
+        void run ();
+    }
+
+    private Corpus corpus;
+
+    protected void setUp () throws IOException {
+        assertTrue("Thread allocation measurement is not supported.", THREADS.isThreadAllocatedMemorySupported());
+        THREADS.setThreadAllocatedMemoryEnabled(true);
+        corpus = new Corpus();
+        corpus.readFile(writeCorpus().getPath());
+    }
+
+    public void testLDAGibbs () {
+        assertSweepDoesNotAllocate(lda(LDA.GIBBS));
+    }
+
+    public void testLDASparse () {
+        assertSweepDoesNotAllocate(lda(LDA.SPARSE));
+    }
+
+    public void testLDAAlias () {
+        assertSweepDoesNotAllocate(lda(LDA.ALIAS));
+    }
+
+    public void testLLDA () {
+        final LLDA llda = new LLDA(0.01, 0.01, corpus);
+        llda.train(1, corpus);
+        assertSweepDoesNotAllocate(new Sweep() {
+            public void run () {
+                for (int index = 0; index < corpus.size(); index++) {
+                    llda.learnSampler.sampleForOneDocument(corpus.get(index));
+                }
+            }
+        });
+    }
+
+    public void testTDTM () {
+        final TDTM tdtm = new TDTM(0.01, 0.01, 0.01, corpus, 20);
+        tdtm.train(1, corpus);
+        assertSweepDoesNotAllocate(new Sweep() {
+            public void run () {
+                for (int index = 0; index < corpus.size(); index++) {
+                    tdtm.learnSampler.sampleForOneDocument(corpus.get(index));
+                }
+            }
+        });
+    }
+
+    public void testATMGibbs () {
+        assertSweepDoesNotAllocate(atm(ATM.GIBBS));
+    }
+
+    public void testATMSparse () {
+        assertSweepDoesNotAllocate(atm(ATM.SPARSE));
+    }
+
+    public void testProtoLDA () {
+        HashMap<String, ArrayList<String>> protoTopics = new HashMap<String, ArrayList<String>>();
+        for (int topic = 0; topic < 5; topic++) {
+            ArrayList<String> words = new ArrayList<String>();
+            for (int word = topic; word < 50; word += 5) {
+                words.add("w" + word);
+            }
+            protoTopics.put("proto" + topic, words);
+        }
+        final ProtoLDA lda = new ProtoLDA(NUM_TOPICS, 0.01, 0.01, 0.01, corpus, protoTopics);
+        lda.train(1, corpus);
+        assertSweepDoesNotAllocate(new Sweep() {
+            public void run () {
+                for (int index = 0; index < corpus.size(); index++) {
+                    lda.learnSampler.sampleForOneDocument(corpus.get(index));
+                }
+            }
+        });
+    }
+
+    private Sweep lda (String sampler) {
+        final LDA lda = new LDA(NUM_TOPICS, 0.01, 0.01, corpus);
+        lda.sampler = sampler;
+        lda.train(1, corpus);
+        return new Sweep() {
+            public void run () {
+                for (int index = 0; index < corpus.size(); index++) {
+                    lda.learnSampler.sampleForOneDocument(corpus.get(index));
+                }
+            }
+        };
+    }
+
+    private Sweep atm (String sampler) {
+        final ATM atm = new ATM(NUM_TOPICS, 0.01, 0.01, 0.01, corpus);
+        atm.sampler = sampler;
+        atm.train(1, corpus);
+        return new Sweep() {
+            public void run () {
+                for (int index = 0; index < corpus.size(); index++) {
+                    atm.learnSampler.sampleForOneDocument(corpus.get(index));
+                }
+            }
+        };
+    }
+
+    private static void assertSweepDoesNotAllocate (Sweep sweep) {
+        for (int iteration = 0; iteration < WARM_UP_SWEEPS; iteration++) {
+            sweep.run();
+        }
+        long thread = Thread.currentThread().getId();
+        // the allocations of the measurement itself
+        long overhead = -THREADS.getThreadAllocatedBytes(thread) + THREADS.getThreadAllocatedBytes(thread);
+        long allocated = Long.MAX_VALUE;
+        for (int iteration = 0; iteration < MEASURED_SWEEPS; iteration++) {
+            long before = THREADS.getThreadAllocatedBytes(thread);
+            sweep.run();
+            allocated = Math.min(allocated, THREADS.getThreadAllocatedBytes(thread) - before - overhead);
+        }
+        assertEquals("Bytes allocated by a steady-state sweep", 0, Math.max(allocated, 0));
+    }
+
+    /**
+     * Write a small random corpus with one to three labels and one or two authors
+     * per document, in the format of Corpus.readFile.
+     */
+    private static File writeCorpus () throws IOException {
+        File file = File.createTempFile("allocation-corpus", ".tsv");
+        file.deleteOnExit();
+        Random random = new Random(20);
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            for (int document = 0; document < 200; document++) {
+                out.print("doc" + document + "\t");
+                out.print("author" + random.nextInt(5) + (random.nextBoolean() ? ",author" + (5 + random.nextInt(5)) : ""));
+                out.print("\tlabel" + random.nextInt(4));
+                for (int label = random.nextInt(3); label > 0; label--) {
+                    out.print(",label" + (4 * label + random.nextInt(4)));
+                }
+                out.print("\t");
+                for (int position = 0; position < 50; position++) {
+                    out.print((position > 0 ? " " : "") + "w" + random.nextInt(200));
+                }
+                out.print("\n");
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}